@@ -0,0 +1,252 @@
+package systems.crigges.jmpq3;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Directory of the files of an archive, resolved from a list file.
+ * <p>
+ * Maps every list file name that has a mapping in the archive hash table to
+ * its block table index, block and resolved locale. Entries are ordered by
+ * name ignoring case. Entries are stored in parallel arrays, so a directory
+ * of a million files only holds the names and a few bytes per entry.
+ * <p>
+ * Names are resolved against the hash table in parallel on the common
+ * {@link java.util.concurrent.ForkJoinPool}.
+ */
+@Immutable
+public class ArchiveDirectory {
+
+    /**
+     * A single resolved file.
+     *
+     * @param name       file path name.
+     * @param blockIndex block table index.
+     * @param locale     locale of the hash table entry that was resolved.
+     * @param block      block table entry.
+     */
+    public record Entry(String name, int blockIndex, short locale, Block block) {
+    }
+
+    private final BlockTable blockTable;
+
+    /**
+     * Entry fields stored as parallel arrays, ordered by name.
+     */
+    private final String[] names;
+    private final int[] blockIndices;
+    private final short[] locales;
+
+    /**
+     * File keys in ascending order, with the entry index of each key. Used to
+     * find entries by name.
+     */
+    private final long[] sortedKeys;
+    private final int[] keyEntries;
+
+    private ArchiveDirectory(BlockTable blockTable, String[] names, int[] blockIndices, short[] locales,
+                             long[] sortedKeys, int[] keyEntries) {
+        this.blockTable = blockTable;
+        this.names = names;
+        this.blockIndices = blockIndices;
+        this.locales = locales;
+        this.sortedKeys = sortedKeys;
+        this.keyEntries = keyEntries;
+    }
+
+    /**
+     * Resolves file names against an archive hash table.
+     *
+     * @param hashTable  hash table to resolve names with.
+     * @param blockTable block table of the archive.
+     * @param files      file path names. Of names with the same key, such as
+     *                   names which only differ in case, only the first in
+     *                   name order is kept.
+     * @param locale     preferred file locale.
+     * @return directory of the names with a mapping.
+     */
+    static ArchiveDirectory build(HashTable hashTable, BlockTable blockTable, Collection<String> files, short locale) {
+        final String[] candidates = files.toArray(new String[0]);
+        Arrays.parallelSort(candidates, String.CASE_INSENSITIVE_ORDER);
+
+        final int n = candidates.length;
+        final long[] candidateKeys = new long[n];
+        final int[] candidateBlocks = new int[n];
+        final short[] candidateLocales = new short[n];
+        IntStream.range(0, n).parallel().forEach(i -> {
+            final FileIdentifier file = FileIdentifier.of(candidates[i], locale);
+            final int entry = hashTable.getFileEntryIndex(file);
+            final int blockIndex = entry == -1 ? -1 : hashTable.getEntryBlockIndex(entry);
+
+            candidateKeys[i] = file.key();
+            if (blockIndex >= 0 && blockIndex < blockTable.size()) {
+                candidateBlocks[i] = blockIndex;
+                candidateLocales[i] = hashTable.getEntryLocale(entry);
+            } else {
+                candidateBlocks[i] = -1;
+            }
+        });
+
+        int resolved = 0;
+        for (int i = 0; i < n; i++) {
+            if (candidateBlocks[i] != -1)
+                resolved++;
+        }
+        final long[] sortedKeys = new long[resolved];
+        for (int i = 0, j = 0; i < n; i++) {
+            if (candidateBlocks[i] != -1)
+                sortedKeys[j++] = candidateKeys[i];
+        }
+        Arrays.parallelSort(sortedKeys);
+
+        // names which only differ in case hash to the same key, keep the
+        // first of them in name order
+        int keyCount = 0;
+        for (int i = 0; i < resolved; i++) {
+            if (i == 0 || sortedKeys[i] != sortedKeys[i - 1])
+                sortedKeys[keyCount++] = sortedKeys[i];
+        }
+        final long[] keys = Arrays.copyOf(sortedKeys, keyCount);
+        final int[] keyCandidates = new int[keyCount];
+        Arrays.fill(keyCandidates, -1);
+        for (int i = 0; i < n; i++) {
+            if (candidateBlocks[i] == -1)
+                continue;
+            final int position = Arrays.binarySearch(keys, candidateKeys[i]);
+            if (keyCandidates[position] == -1)
+                keyCandidates[position] = i;
+            else
+                candidateBlocks[i] = -1;
+        }
+
+        final String[] names = new String[keyCount];
+        final int[] blockIndices = new int[keyCount];
+        final short[] locales = new short[keyCount];
+        final int[] entries = new int[n];
+        for (int i = 0, j = 0; i < n; i++) {
+            if (candidateBlocks[i] == -1)
+                continue;
+            names[j] = candidates[i];
+            blockIndices[j] = candidateBlocks[i];
+            locales[j] = candidateLocales[i];
+            entries[i] = j;
+            j++;
+        }
+        final int[] keyEntries = new int[keyCount];
+        for (int i = 0; i < keyCount; i++)
+            keyEntries[i] = entries[keyCandidates[i]];
+
+        return new ArchiveDirectory(blockTable, names, blockIndices, locales, keys, keyEntries);
+    }
+
+    /**
+     * Creates a directory from already resolved entries, such as those of an
+     * index cache.
+     *
+     * @param blockTable   block table of the archive.
+     * @param names        file path names, ordered by name ignoring case.
+     * @param blockIndices block table index of each name.
+     * @param locales      resolved locale of each name.
+     * @param sortedKeys   distinct file keys in ascending order.
+     * @param keyEntries   entry index of each key.
+     * @return directory of the entries.
+     */
+    static ArchiveDirectory of(BlockTable blockTable, String[] names, int[] blockIndices, short[] locales, long[] sortedKeys,
+                               int[] keyEntries) {
+        return new ArchiveDirectory(blockTable, names, blockIndices, locales, sortedKeys, keyEntries);
+    }
+
+    /**
+     * Get the number of files in this directory.
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Get the names of all files in this directory, ordered by name ignoring
+     * case.
+     */
+    public List<String> getNames() {
+        return Collections.unmodifiableList(Arrays.asList(names));
+    }
+
+    /**
+     * Find the entry index of the specified file.
+     *
+     * @param name file path name.
+     * @return entry index, or -1 if the file is not in this directory.
+     */
+    public int indexOf(String name) {
+        final int i = Arrays.binarySearch(sortedKeys, FileIdentifier.of(name).key());
+        return i < 0 ? -1 : keyEntries[i];
+    }
+
+    /**
+     * Check if the specified file is in this directory.
+     *
+     * @param name file path name.
+     * @return true if the file is in this directory, otherwise false.
+     */
+    public boolean contains(String name) {
+        return indexOf(name) != -1;
+    }
+
+    /**
+     * Find the entry of the specified file.
+     *
+     * @param name file path name.
+     * @return the entry, or null if the file is not in this directory.
+     */
+    public Entry find(String name) {
+        final int index = indexOf(name);
+        return index == -1 ? null : getEntry(index);
+    }
+
+    /**
+     * Get the key at a position of the keys in ascending order.
+     */
+    long getSortedKey(int position) {
+        return sortedKeys[position];
+    }
+
+    /**
+     * Get the entry index of the key at a position of the keys in ascending
+     * order.
+     */
+    int getKeyEntry(int position) {
+        return keyEntries[position];
+    }
+
+    public String getName(int index) {
+        return names[index];
+    }
+
+    public int getBlockIndex(int index) {
+        return blockIndices[index];
+    }
+
+    public short getLocale(int index) {
+        return locales[index];
+    }
+
+    public Block getBlock(int index) {
+        return blockTable.getBlock(blockIndices[index]);
+    }
+
+    public Entry getEntry(int index) {
+        return new Entry(names[index], blockIndices[index], locales[index], getBlock(index));
+    }
+
+    /**
+     * Stream the entries of this directory, ordered by name ignoring case.
+     */
+    public Stream<Entry> stream() {
+        return IntStream.range(0, names.length).mapToObj(this::getEntry);
+    }
+}
@@ -24,18 +24,30 @@ public class BlockTable {
     }
 
     public Block getBlockAtPos(int pos) throws JMpqException {
-        if (pos < 0 || pos > blocks.size())
+        if (pos < 0 || pos >= blocks.size())
             throw new JMpqException("Invaild block position");
 
         return blocks.get(pos);
     }
 
+    Block getBlock(int pos) {
+        return blocks.get(pos);
+    }
+
+    public int size() {
+        return blocks.size();
+    }
+
     public List<Block> getAllVaildBlocks() {
         return blocks.stream()
             .filter(e -> e.hasFlag(EXISTS))
             .toList();
     }
 
+    static BlockTable of(List<Block> blocks) {
+        return new BlockTable(List.copyOf(blocks));
+    }
+
     public static BlockTable readFrom(ByteBuffer byteBuffer) {
         ByteBuffer decryptedBuffer = ByteBuffer.allocate(byteBuffer.capacity());
         new MPQEncryption(-326913117, true).processFinal(byteBuffer, decryptedBuffer);
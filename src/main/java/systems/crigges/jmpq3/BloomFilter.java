@@ -0,0 +1,53 @@
+package systems.crigges.jmpq3;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Blocked Bloom filter over 64 bit file keys.
+ * <p>
+ * Every key sets 4 bits within a single 64 bit word, so a query reads one
+ * word and never walks a hash table probe sequence. With at least 16 bits per
+ * key about 1 in 200 keys that were not added are reported as possibly
+ * contained.
+ */
+@Immutable
+final class BloomFilter {
+
+    private static final int BITS_PER_KEY = 16;
+
+    private final long[] words;
+    private final int shift;
+
+    BloomFilter(long[] keys, int count) {
+        final int wordCount = Integer.highestOneBit(Math.max(1, (int) Math.min(1 << 30, (long) count * BITS_PER_KEY / 64)) * 2 - 1);
+        this.words = new long[Math.max(2, wordCount)];
+        this.shift = 64 - Integer.numberOfTrailingZeros(words.length);
+
+        for (int i = 0; i < count; i++) {
+            final long hash = mix(keys[i]);
+            words[(int) (hash >>> shift)] |= bits(hash);
+        }
+    }
+
+    /**
+     * Check if a key might have been added to this filter.
+     *
+     * @param key 64 bit file key.
+     * @return false if the key was definitely not added, otherwise true.
+     */
+    boolean mightContain(long key) {
+        final long hash = mix(key);
+        final long bits = bits(hash);
+        return (words[(int) (hash >>> shift)] & bits) == bits;
+    }
+
+    private static long mix(long key) {
+        key = (key ^ (key >>> 33)) * 0xFF51AFD7ED558CCDL;
+        key = (key ^ (key >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return key ^ (key >>> 33);
+    }
+
+    private static long bits(long hash) {
+        return 1L << hash | 1L << (hash >>> 6) | 1L << (hash >>> 12) | 1L << (hash >>> 18);
+    }
+}
@@ -0,0 +1,37 @@
+package systems.crigges.jmpq3;
+
+import javax.annotation.concurrent.Immutable;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.function.Predicate;
+
+/**
+ * Options for {@link JMpqArchive#extractAll(Path, ExtractOptions)}.
+ *
+ * @param filter  selects the file path names to extract.
+ * @param threads number of threads decoding and writing files.
+ */
+@Immutable
+public record ExtractOptions(Predicate<String> filter, int threads) {
+
+    public ExtractOptions {
+        Objects.requireNonNull(filter, "filter");
+        if (threads < 1)
+            throw new IllegalArgumentException("Invalid thread count <" + threads + ">.");
+    }
+
+    /**
+     * Get options extracting every file using one thread per processor.
+     */
+    public static ExtractOptions defaults() {
+        return new ExtractOptions(name -> true, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ExtractOptions withFilter(Predicate<String> filter) {
+        return new ExtractOptions(filter, threads);
+    }
+
+    public ExtractOptions withThreads(int threads) {
+        return new ExtractOptions(filter, threads);
+    }
+}
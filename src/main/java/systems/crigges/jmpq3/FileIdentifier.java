@@ -1,30 +1,80 @@
 package systems.crigges.jmpq3;
 
 import systems.crigges.jmpq3.security.MPQHashGenerator;
-
-import static systems.crigges.jmpq3.Util.calculateFileKey;
+import systems.crigges.jmpq3.security.MPQNameHash;
 
 /**
- * Plain old data class to internally represent a uniquely identifiable
- * file.
+ * Plain old data class to represent a uniquely identifiable file.
+ * <p>
+ * Used to cache file name hash results. An identifier can be resolved once
+ * and then looked up in any number of archives without hashing the file name
+ * again, see {@link JMpqArchive#lookup(FileIdentifier)}.
  * <p>
- * Used to cache file name hash results.
+ * Identifiers are equal if they have the same key, offset and locale. The
+ * name is not compared, so identifiers of names which only differ in case,
+ * or of the raw hash values of the same name, are equal.
  *
  * @param key       64 bit file key.
  * @param offset    Offset into hash table bucket array to start search.
  * @param locale    File locale in the form of a Windows Language ID.
+ * @param name      File path name, or null if the identifier was created from
+ *                  raw hash values. Required to decrypt encrypted files.
  */
 public record FileIdentifier(
-    long key, int offset, short locale
+    long key, int offset, short locale, String name
 ) {
 
+    public FileIdentifier(long key, int offset, short locale) {
+        this(key, offset, locale, null);
+    }
+
     public FileIdentifier(String name, short locale) {
-        this(calculateFileKey(name), getOffsetHash(name), locale);
+        this(MPQHashGenerator.hashFileName(name), locale, name);
+    }
+
+    private FileIdentifier(MPQNameHash hash, short locale, String name) {
+        this(hash.key(), hash.offset(), locale, name);
+    }
+
+    /**
+     * Resolve a file path name to an identifier.
+     *
+     * @param name   file path name.
+     * @param locale file locale.
+     * @return identifier of the file.
+     */
+    public static FileIdentifier of(String name, short locale) {
+        return new FileIdentifier(name, locale);
+    }
+
+    /**
+     * Resolve a file path name to an identifier for the default locale.
+     *
+     * @param name file path name.
+     * @return identifier of the file.
+     */
+    public static FileIdentifier of(String name) {
+        return new FileIdentifier(name, HashTable.DEFAULT_LOCALE);
+    }
+
+    /**
+     * Get an identifier of the same file for a different locale. The file
+     * name is not hashed again.
+     *
+     * @param locale file locale.
+     * @return identifier of the file.
+     */
+    public FileIdentifier withLocale(short locale) {
+        return new FileIdentifier(key, offset, locale, name);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof FileIdentifier other && key == other.key && offset == other.offset && locale == other.locale;
     }
 
-    private static int getOffsetHash(String name) {
-        MPQHashGenerator offsetGen = MPQHashGenerator.getTableOffsetGenerator();
-        offsetGen.process(name);
-        return offsetGen.getHash();
+    @Override
+    public int hashCode() {
+        return (Long.hashCode(key) * 31 + offset) * 31 + locale;
     }
 }
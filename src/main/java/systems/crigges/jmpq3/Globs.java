@@ -0,0 +1,93 @@
+package systems.crigges.jmpq3;
+
+/**
+ * Translates glob patterns into regular expressions.
+ * <p>
+ * Supports the same syntax as {@link java.nio.file.FileSystem#getPathMatcher(String)}:
+ * {@code *} matches within a name, {@code **} matches across names,
+ * {@code ?} matches a single character, {@code [...]} matches a character
+ * class, {@code {a,b}} matches alternatives and {@code \} escapes the next
+ * character. Both '/' and '\' are matched as name separators by '/'.
+ */
+final class Globs {
+
+    private static final String REGEX_META = "\\^$.|?*+()[]{}";
+
+    private static final String NOT_SEPARATOR = "[^/\\\\]";
+
+    static String toRegex(String glob) {
+        final StringBuilder regex = new StringBuilder(glob.length() * 2);
+        boolean inGroup = false;
+        boolean inClass = false;
+
+        for (int i = 0; i < glob.length(); i++) {
+            final char c = glob.charAt(i);
+            if (inClass) {
+                if (c == ']') {
+                    inClass = false;
+                    regex.append(']');
+                } else {
+                    if (c == '\\' || c == '[' || c == '&')
+                        regex.append('\\');
+                    regex.append(c);
+                }
+                continue;
+            }
+
+            switch (c) {
+                case '*' -> {
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        regex.append(".*");
+                        i++;
+                    } else {
+                        regex.append(NOT_SEPARATOR).append('*');
+                    }
+                }
+                case '?' -> regex.append(NOT_SEPARATOR);
+                case '[' -> {
+                    inClass = true;
+                    regex.append('[');
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '!') {
+                        regex.append('^');
+                        i++;
+                    }
+                }
+                case '{' -> {
+                    if (inGroup)
+                        throw new IllegalArgumentException("Nested groups are not supported <" + glob + ">.");
+                    inGroup = true;
+                    regex.append("(?:");
+                }
+                case '}' -> {
+                    if (inGroup) {
+                        inGroup = false;
+                        regex.append(')');
+                    } else {
+                        regex.append("\\}");
+                    }
+                }
+                case ',' -> regex.append(inGroup ? "|" : ",");
+                case '/' -> regex.append("[/\\\\]");
+                case '\\' -> {
+                    if (++i >= glob.length())
+                        throw new IllegalArgumentException("Trailing escape <" + glob + ">.");
+                    appendLiteral(regex, glob.charAt(i));
+                }
+                default -> appendLiteral(regex, c);
+            }
+        }
+
+        if (inClass || inGroup)
+            throw new IllegalArgumentException("Unclosed class or group <" + glob + ">.");
+        return regex.toString();
+    }
+
+    private static void appendLiteral(StringBuilder regex, char c) {
+        if (REGEX_META.indexOf(c) >= 0)
+            regex.append('\\');
+        regex.append(c);
+    }
+
+    private Globs() {
+    }
+}
@@ -3,8 +3,7 @@ package systems.crigges.jmpq3;
 import javax.annotation.concurrent.Immutable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteOrder;
 
 /**
  * MPQ hash table. Used to map file paths to block table indices.
@@ -37,10 +36,54 @@ public class HashTable {
      */
     public static final short DEFAULT_LOCALE = 0;
 
-    private final List<Bucket> buckets;
+    /*
+     * Bucket fields stored as parallel arrays, indexed by bucket position.
+     */
+
+    /**
+     * 64 bit file key of every bucket.
+     */
+    private final long[] keys;
+
+    /**
+     * File locale of every bucket, in the form of a Windows Language ID.
+     */
+    private final short[] locales;
+
+    /**
+     * Block table index for the file data of every bucket. The magic numbers
+     * ENTRY_UNUSED and ENTRY_DELETED represent the bucket state.
+     */
+    private final int[] blockTableIndices;
 
-    private HashTable(List<Bucket> buckets) {
-        this.buckets = buckets;
+    /**
+     * Optional filter of the keys in use, used to reject files without a
+     * mapping before probing the buckets.
+     */
+    private final BloomFilter keyFilter;
+
+    private HashTable(long[] keys, short[] locales, int[] blockTableIndices, BloomFilter keyFilter) {
+        this.keys = keys;
+        this.locales = locales;
+        this.blockTableIndices = blockTableIndices;
+        this.keyFilter = keyFilter;
+    }
+
+    /**
+     * Get a hash table with the same mappings which rejects most files
+     * without a mapping using a Bloom filter over the keys in use, instead of
+     * walking the probe sequence of the file.
+     *
+     * @return hash table with a key filter.
+     */
+    public HashTable withKeyFilter() {
+        final long[] used = new long[keys.length];
+        int count = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (blockTableIndices[i] != ENTRY_UNUSED && blockTableIndices[i] != ENTRY_DELETED)
+                used[count++] = keys[i];
+        }
+        return new HashTable(keys, locales, blockTableIndices, new BloomFilter(used, count));
     }
 
     /**
@@ -49,21 +92,26 @@ public class HashTable {
      * @param file file identifier.
      * @return the bucket index used, or -1 if the file has no mapping.
      */
-    private int getFileEntryIndex(FileIdentifier file) {
-        final int mask = buckets.size() - 1;
+    int getFileEntryIndex(FileIdentifier file) {
+        if (keyFilter != null && !keyFilter.mightContain(file.key()))
+            return -1;
+
+        final int mask = keys.length - 1;
         final int start = file.offset() & mask;
+        final long key = file.key();
         int bestEntryIndex = -1;
-        for (int c = 0; c < buckets.size(); c++) {
+        for (int c = 0; c < keys.length; c++) {
             final int index = start + c & mask;
-            final Bucket entry = buckets.get(index);
+            final int blockTableIndex = blockTableIndices[index];
 
-            if (entry.blockTableIndex() == ENTRY_UNUSED)
+            if (blockTableIndex == ENTRY_UNUSED)
                 break;
 
-            if (entry.blockTableIndex() != ENTRY_DELETED && entry.key() == file.key()) {
-                if (entry.locale() == file.locale()) {
+            if (blockTableIndex != ENTRY_DELETED && keys[index] == key) {
+                final short locale = locales[index];
+                if (locale == file.locale()) {
                     return index;
-                } else if (bestEntryIndex == -1 || entry.locale() == DEFAULT_LOCALE) {
+                } else if (bestEntryIndex == -1 || locale == DEFAULT_LOCALE) {
                     bestEntryIndex = index;
                 }
             }
@@ -73,14 +121,41 @@ public class HashTable {
     }
 
     /**
-     * Internal method to get a bucket for the specified file.
+     * Get the number of buckets.
+     */
+    int getCapacity() {
+        return keys.length;
+    }
+
+    /**
+     * Get the 64 bit file key of a bucket.
+     */
+    long getEntryKey(int index) {
+        return keys[index];
+    }
+
+    /**
+     * Get the block table index of a bucket.
+     */
+    int getEntryBlockIndex(int index) {
+        return blockTableIndices[index];
+    }
+
+    /**
+     * Get the locale of a bucket.
+     */
+    short getEntryLocale(int index) {
+        return locales[index];
+    }
+
+    /**
+     * Get the fields of a bucket.
      *
-     * @param file file identifier.
-     * @return the file bucket, or null if the file has no mapping.
+     * @param index bucket position.
+     * @return the bucket.
      */
-    private Bucket getFileEntry(FileIdentifier file) {
-        final int index = getFileEntryIndex(file);
-        return index != -1 ? buckets.get(index) : null;
+    public Bucket getBucket(int index) {
+        return new Bucket(keys[index], locales[index], blockTableIndices[index]);
     }
 
     /**
@@ -93,7 +168,35 @@ public class HashTable {
      *         false.
      */
     public boolean hasFile(String file) {
-        return getFileEntryIndex(new FileIdentifier(file, DEFAULT_LOCALE)) != -1;
+        return hasFile(FileIdentifier.of(file));
+    }
+
+    /**
+     * Check if the specified file has a mapping in this hash table.
+     *
+     * @param file file identifier.
+     * @return true if the hash table has a mapping for the file, otherwise
+     *         false.
+     */
+    public boolean hasFile(FileIdentifier file) {
+        return getFileEntryIndex(file) != -1;
+    }
+
+    /**
+     * Find the block table index for the specified file.
+     * <p>
+     * Locale selection is the same as for
+     * {@link #getFileBlockIndex(String, short)}.
+     *
+     * @param file file identifier.
+     * @return block table index, or -1 if the file has no mapping or the
+     *         mapping has an invalid block table index.
+     */
+    public int findBlockIndex(FileIdentifier file) {
+        final int index = getFileEntryIndex(file);
+        if (index == -1 || blockTableIndices[index] < 0)
+            return -1;
+        return blockTableIndices[index];
     }
 
     /**
@@ -123,15 +226,39 @@ public class HashTable {
      *             if the specified file has no mapping.
      */
     public int getFileBlockIndex(String name, short locale) throws IOException {
-        final FileIdentifier fid = new FileIdentifier(name, locale);
-        Bucket entry = getFileEntry(fid);
+        return getFileBlockIndex(FileIdentifier.of(name, locale));
+    }
 
-        if (entry == null)
-            throw new JMpqException("File Not Found <" + name + ">.");
-        else if (entry.blockTableIndex() < 0)
-            throw new JMpqException("File has invalid block table index <" + entry.blockTableIndex() + ">.");
+    /**
+     * Get the block table index for the specified file.
+     * <p>
+     * Locale selection is the same as for
+     * {@link #getFileBlockIndex(String, short)}.
+     *
+     * @param file file identifier.
+     * @return block table index.
+     * @throws IOException
+     *             if the specified file has no mapping.
+     */
+    public int getFileBlockIndex(FileIdentifier file) throws IOException {
+        final int index = getFileEntryIndex(file);
+
+        if (index == -1)
+            throw new JMpqException("File Not Found <" + (file.name() != null ? file.name() : Long.toHexString(file.key())) + ">.");
+        else if (blockTableIndices[index] < 0)
+            throw new JMpqException("File has invalid block table index <" + blockTableIndices[index] + ">.");
 
-        return entry.blockTableIndex();
+        return blockTableIndices[index];
+    }
+
+    /**
+     * Create a hash table from decrypted bucket fields.
+     */
+    static HashTable of(long[] keys, short[] locales, int[] blockTableIndices) {
+        if (keys.length == 0 || (keys.length & (keys.length - 1)) != 0)
+            throw new IllegalArgumentException("Capacity must be power of 2.");
+
+        return new HashTable(keys, locales, blockTableIndices, null);
     }
 
     public static HashTable fromBuffer(ByteBuffer src, int hashSize) {
@@ -139,12 +266,18 @@ public class HashTable {
             throw new IllegalArgumentException("Capacity must be power of 2.");
         }
 
-        List<Bucket> buckets = new ArrayList<>();
-        for(int i = 0; i < hashSize; i++) {
-            Bucket bucket = Bucket.readFromBuffer(src);
-            buckets.add(bucket);
+        final long[] keys = new long[hashSize];
+        final short[] locales = new short[hashSize];
+        final int[] blockTableIndices = new int[hashSize];
+
+        src.order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < hashSize; i++) {
+            keys[i] = src.getLong();
+            locales[i] = src.getShort();
+            src.getShort(); // platform not used
+            blockTableIndices[i] = src.getInt();
         }
 
-        return new HashTable(buckets);
+        return new HashTable(keys, locales, blockTableIndices, null);
     }
 }
\ No newline at end of file
@@ -0,0 +1,387 @@
+package systems.crigges.jmpq3;
+
+import javax.annotation.concurrent.Immutable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sidecar file caching the decoded tables of an archive.
+ * <p>
+ * Holds the parsed header, the decrypted hash and block tables, the list file,
+ * the {@link ArchiveDirectory} resolved from it and the decrypted sector
+ * offset tables of the archive files. The cache is
+ * keyed by the archive file size and modification time and by the raw bytes
+ * of the archive header, so a modified archive is never served from a stale
+ * cache.
+ * <p>
+ * The cache file is memory mapped. Tables are copied out of the mapping when
+ * the archive is opened while list file, directory and sector offset tables
+ * are only read on demand.
+ */
+@Immutable
+final class IndexCache {
+
+    /**
+     * "JMPQIDX" followed by the format version.
+     */
+    private static final long MAGIC = 0x03_58_44_49_51_50_4D_4AL;
+
+    /**
+     * Bytes of every directory entry besides its name: block index, locale,
+     * sorted key, key entry and name length.
+     */
+    private static final int DIRECTORY_ENTRY_SIZE = 4 + 2 + 8 + 4 + 4;
+
+    /**
+     * Extension appended to the archive file name to name the cache file.
+     */
+    static final String EXTENSION = ".jmpqidx";
+
+    /**
+     * Archive header fields as found in {@link JMpqArchive}. The user data
+     * position is -1 if the archive has no user data header.
+     */
+    record Header(long headerOffset, long userDataPosition, int headerSize, long archiveSize, int formatVersion, int discBlockSize,
+                  long hashTablePosition, long blockTablePosition, int hashSize, int blockSize, byte[] rawHeader) {
+    }
+
+    private final Header header;
+    private final HashTable hashTable;
+    private final BlockTable blockTable;
+    private final ByteBuffer listfile;
+    private final ByteBuffer directory;
+    private final IntBuffer sectorOffsetIndex;
+    private final IntBuffer sectorOffsets;
+
+    private IndexCache(Header header, HashTable hashTable, BlockTable blockTable, ByteBuffer listfile, ByteBuffer directory,
+                       IntBuffer sectorOffsetIndex, IntBuffer sectorOffsets) {
+        this.header = header;
+        this.hashTable = hashTable;
+        this.blockTable = blockTable;
+        this.listfile = listfile;
+        this.directory = directory;
+        this.sectorOffsetIndex = sectorOffsetIndex;
+        this.sectorOffsets = sectorOffsets;
+    }
+
+    static Path sidecarOf(Path archive) {
+        return archive.resolveSibling(archive.getFileName() + EXTENSION);
+    }
+
+    Header getHeader() {
+        return header;
+    }
+
+    HashTable getHashTable() {
+        return hashTable;
+    }
+
+    BlockTable getBlockTable() {
+        return blockTable;
+    }
+
+    /**
+     * Get the cached list file data.
+     *
+     * @return list file data, or null if the archive has no list file.
+     */
+    byte[] getListfile() {
+        if (listfile == null)
+            return null;
+
+        final byte[] data = new byte[listfile.remaining()];
+        listfile.get(listfile.position(), data);
+        return data;
+    }
+
+    /**
+     * Get the cached directory of the list file, resolved for the default
+     * locale.
+     *
+     * @return the directory, or null if the archive has no list file or the
+     *         cached directory is invalid.
+     */
+    ArchiveDirectory getDirectory() {
+        if (directory == null)
+            return null;
+
+        try {
+            final ByteBuffer buffer = directory.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            final int count = buffer.getInt();
+            if (!fits(buffer, count, DIRECTORY_ENTRY_SIZE))
+                return null;
+
+            final int[] blockIndices = new int[count];
+            final short[] locales = new short[count];
+            final long[] sortedKeys = new long[count];
+            final int[] keyEntries = new int[count];
+            final int[] nameLengths = new int[count];
+            buffer.asIntBuffer().get(blockIndices);
+            buffer.position(buffer.position() + count * 4);
+            buffer.asShortBuffer().get(locales);
+            buffer.position(buffer.position() + count * 2);
+            buffer.asLongBuffer().get(sortedKeys);
+            buffer.position(buffer.position() + count * 8);
+            buffer.asIntBuffer().get(keyEntries);
+            buffer.position(buffer.position() + count * 4);
+            buffer.asIntBuffer().get(nameLengths);
+            buffer.position(buffer.position() + count * 4);
+
+            final String[] names = new String[count];
+            for (int i = 0; i < count; i++) {
+                if (!fits(buffer, nameLengths[i], 1) || blockIndices[i] < 0 || blockIndices[i] >= blockTable.size()
+                        || keyEntries[i] < 0 || keyEntries[i] >= count)
+                    return null;
+                final byte[] name = new byte[nameLengths[i]];
+                buffer.get(name);
+                names[i] = new String(name, StandardCharsets.UTF_8);
+            }
+            return ArchiveDirectory.of(blockTable, names, blockIndices, locales, sortedKeys, keyEntries);
+        } catch (RuntimeException e) {
+            // corrupt cache, resolve the list file again
+            return null;
+        }
+    }
+
+    /**
+     * Get the cached sector offset table of a block.
+     *
+     * @param blockIndex block table index.
+     * @return sector offsets, or null if none is cached for the block.
+     */
+    int[] getSectorOffsets(int blockIndex) {
+        if (blockIndex < 0 || blockIndex + 1 >= sectorOffsetIndex.limit())
+            return null;
+
+        final int start = sectorOffsetIndex.get(blockIndex);
+        final int end = sectorOffsetIndex.get(blockIndex + 1);
+        if (start == end)
+            return null;
+
+        final int[] offsets = new int[end - start];
+        sectorOffsets.get(start, offsets);
+        return offsets;
+    }
+
+    /**
+     * Load the cache of an archive.
+     *
+     * @param sidecar      cache file.
+     * @param fileSize     current size of the archive file.
+     * @param lastModified current modification time of the archive file.
+     * @param legacy       if the archive is opened in legacy compatibility mode.
+     * @return the cache, or null if there is no valid cache for the archive.
+     */
+    static IndexCache load(Path sidecar, long fileSize, long lastModified, boolean legacy) {
+        if (!Files.isRegularFile(sidecar))
+            return null;
+
+        try (FileChannel channel = FileChannel.open(sidecar, StandardOpenOption.READ)) {
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getLong() != MAGIC || buffer.getLong() != fileSize || buffer.getLong() != lastModified
+                    || (buffer.get() != 0) != legacy)
+                return null;
+
+            // element counts are checked before allocating, a corrupt count
+            // must not exhaust the heap
+            final int rawHeaderLength = buffer.getInt();
+            if (!fits(buffer, rawHeaderLength, 1))
+                return null;
+            final byte[] rawHeader = new byte[rawHeaderLength];
+            buffer.get(rawHeader);
+            final Header header = new Header(buffer.getLong(), buffer.getLong(), buffer.getInt(), buffer.getLong(), buffer.getInt(),
+                    buffer.getInt(), buffer.getLong(), buffer.getLong(), buffer.getInt(), buffer.getInt(), rawHeader);
+
+            final int capacity = buffer.getInt();
+            if (!fits(buffer, capacity, 14))
+                return null;
+            final long[] keys = new long[capacity];
+            final int[] blockTableIndices = new int[capacity];
+            final short[] locales = new short[capacity];
+            buffer.asLongBuffer().get(keys);
+            buffer.position(buffer.position() + capacity * 8);
+            buffer.asIntBuffer().get(blockTableIndices);
+            buffer.position(buffer.position() + capacity * 4);
+            buffer.asShortBuffer().get(locales);
+            buffer.position(buffer.position() + capacity * 2);
+            final HashTable hashTable = HashTable.of(keys, locales, blockTableIndices);
+
+            final int blockCount = buffer.getInt();
+            if (!fits(buffer, blockCount, 16))
+                return null;
+            final List<Block> blocks = new ArrayList<>(blockCount);
+            for (int i = 0; i < blockCount; i++)
+                blocks.add(Block.readFromBuffer(buffer));
+            final BlockTable blockTable = BlockTable.of(blocks);
+
+            final int listfileLength = buffer.getInt();
+            ByteBuffer listfile = null;
+            if (listfileLength >= 0) {
+                if (!fits(buffer, listfileLength, 1))
+                    return null;
+                listfile = buffer.slice(buffer.position(), listfileLength);
+                buffer.position(buffer.position() + listfileLength);
+            }
+
+            final int directoryLength = buffer.getInt();
+            ByteBuffer directory = null;
+            if (directoryLength >= 0) {
+                if (!fits(buffer, directoryLength, 1))
+                    return null;
+                directory = buffer.slice(buffer.position(), directoryLength);
+                buffer.position(buffer.position() + directoryLength);
+            }
+
+            final int indexLength = buffer.getInt();
+            if (!fits(buffer, indexLength, 4))
+                return null;
+            final IntBuffer sectorOffsetIndex = buffer.slice(buffer.position(), indexLength * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            buffer.position(buffer.position() + indexLength * 4);
+            final int offsetsLength = buffer.getInt();
+            if (!fits(buffer, offsetsLength, 4))
+                return null;
+            final IntBuffer sectorOffsets = buffer.slice(buffer.position(), offsetsLength * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+
+            return new IndexCache(header, hashTable, blockTable, listfile, directory, sectorOffsetIndex, sectorOffsets);
+        } catch (IOException | RuntimeException e) {
+            // corrupt or truncated cache, rebuild it
+            return null;
+        }
+    }
+
+    /**
+     * Check if the remaining bytes of a buffer hold the specified number of
+     * elements.
+     */
+    private static boolean fits(ByteBuffer buffer, int count, int elementSize) {
+        return count >= 0 && count <= buffer.remaining() / elementSize;
+    }
+
+    /**
+     * Write the cache of an archive. The cache file is replaced atomically
+     * where supported so concurrent readers never see a partial cache.
+     *
+     * @param sidecar       cache file.
+     * @param fileSize      size of the archive file.
+     * @param lastModified  modification time of the archive file.
+     * @param legacy        if the archive is opened in legacy compatibility mode.
+     * @param header        archive header fields.
+     * @param hashTable     decrypted hash table.
+     * @param blockTable    decrypted block table.
+     * @param listfile      list file data, or null if the archive has none.
+     * @param directory     directory of the list file resolved for the
+     *                      default locale, or null if the archive has no
+     *                      list file.
+     * @param sectorOffsets sector offset table of each block, null entries
+     *                      for blocks without one.
+     * @throws IOException if the cache could not be written.
+     */
+    static void write(Path sidecar, long fileSize, long lastModified, boolean legacy, Header header, HashTable hashTable,
+                      BlockTable blockTable, byte[] listfile, ArchiveDirectory directory, int[][] sectorOffsets) throws IOException {
+        final int capacity = hashTable.getCapacity();
+        final int blockCount = blockTable.size();
+        int offsetsLength = 0;
+        for (int[] offsets : sectorOffsets)
+            offsetsLength += offsets != null ? offsets.length : 0;
+
+        final int directoryCount = directory != null ? directory.size() : 0;
+        final byte[][] names = new byte[directoryCount][];
+        long directoryLength = 0;
+        if (directory != null) {
+            directoryLength = 4 + (long) directoryCount * DIRECTORY_ENTRY_SIZE;
+            for (int i = 0; i < directoryCount; i++) {
+                names[i] = directory.getName(i).getBytes(StandardCharsets.UTF_8);
+                directoryLength += names[i].length;
+            }
+        }
+
+        final long size = 29L + header.rawHeader().length + 60 + 4 + capacity * 14L + 4 + blockCount * 16L
+                + 4 + (listfile != null ? listfile.length : 0) + 4 + directoryLength + 4 + (blockCount + 1) * 4L + 4
+                + offsetsLength * 4L;
+        if (size > Integer.MAX_VALUE)
+            throw new JMpqException("Index cache too large <" + size + ">.");
+
+        final ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putLong(MAGIC).putLong(fileSize).putLong(lastModified).put((byte) (legacy ? 1 : 0));
+        buffer.putInt(header.rawHeader().length).put(header.rawHeader());
+        buffer.putLong(header.headerOffset()).putLong(header.userDataPosition()).putInt(header.headerSize()).putLong(header.archiveSize())
+                .putInt(header.formatVersion()).putInt(header.discBlockSize()).putLong(header.hashTablePosition())
+                .putLong(header.blockTablePosition()).putInt(header.hashSize()).putInt(header.blockSize());
+
+        buffer.putInt(capacity);
+        for (int i = 0; i < capacity; i++)
+            buffer.putLong(hashTable.getEntryKey(i));
+        for (int i = 0; i < capacity; i++)
+            buffer.putInt(hashTable.getEntryBlockIndex(i));
+        for (int i = 0; i < capacity; i++)
+            buffer.putShort(hashTable.getEntryLocale(i));
+
+        buffer.putInt(blockCount);
+        for (int i = 0; i < blockCount; i++)
+            blockTable.getBlock(i).writeToBuffer(buffer);
+
+        if (listfile != null)
+            buffer.putInt(listfile.length).put(listfile);
+        else
+            buffer.putInt(-1);
+
+        if (directory != null) {
+            buffer.putInt((int) directoryLength).putInt(directoryCount);
+            for (int i = 0; i < directoryCount; i++)
+                buffer.putInt(directory.getBlockIndex(i));
+            for (int i = 0; i < directoryCount; i++)
+                buffer.putShort(directory.getLocale(i));
+            for (int i = 0; i < directoryCount; i++)
+                buffer.putLong(directory.getSortedKey(i));
+            for (int i = 0; i < directoryCount; i++)
+                buffer.putInt(directory.getKeyEntry(i));
+            for (byte[] name : names)
+                buffer.putInt(name.length);
+            for (byte[] name : names)
+                buffer.put(name);
+        } else {
+            buffer.putInt(-1);
+        }
+
+        buffer.putInt(blockCount + 1);
+        int position = 0;
+        for (int i = 0; i < blockCount; i++) {
+            buffer.putInt(position);
+            position += sectorOffsets[i] != null ? sectorOffsets[i].length : 0;
+        }
+        buffer.putInt(position);
+        buffer.putInt(offsetsLength);
+        for (int[] offsets : sectorOffsets) {
+            if (offsets != null) {
+                for (int offset : offsets)
+                    buffer.putInt(offset);
+            }
+        }
+        buffer.flip();
+
+        final Path temp = Files.createTempFile(sidecar.toAbsolutePath().getParent(), sidecar.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            }
+            try {
+                Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
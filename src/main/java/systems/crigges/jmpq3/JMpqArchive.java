@@ -1,20 +1,37 @@
 package systems.crigges.jmpq3;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import systems.crigges.jmpq3.security.MPQEncryption;
 import systems.crigges.jmpq3.security.MPQHashGenerator;
 
 import javax.annotation.concurrent.ThreadSafe;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static systems.crigges.jmpq3.Block.ENCRYPTED;
 
@@ -39,14 +56,27 @@ public class JMpqArchive implements AutoCloseable {
 
     private static final String LIST_FILE = "(listfile)";
 
+    /**
+     * Size of the reads used to search for the archive header.
+     */
+    private static final int SEARCH_CHUNK_SIZE = 0x10000;
+
     /**
      * Encryption key for hash table data.
      */
     private static final int KEY_HASH_TABLE = MPQHashGenerator.generateFileKey("(hash table)");
 
+    private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
+
     private final FileChannel fileChannel;
 
+    /**
+     * Mapping of the archive file, or null if not opened with {@link MPQOpenOption#MEMORY_MAPPED}.
+     */
+    private final MappedArchive mappedArchive;
+
     private long headerOffset;
+    private MpqUserData userData;
     private int headerSize;
     private long archiveSize;
     private int formatVersion;
@@ -56,8 +86,16 @@ public class JMpqArchive implements AutoCloseable {
     private int hashSize;
     private int blockSize;
 
-    private HashTable hashTable;
-    private BlockTable blockTable;
+    /**
+     * Tables, read on first use when opened with {@link MPQOpenOption#LAZY_TABLES}.
+     */
+    private volatile HashTable hashTable;
+    private volatile BlockTable blockTable;
+
+    /**
+     * Index cache the tables were loaded from, or null if they were read from the archive.
+     */
+    private IndexCache indexCache;
 
     private final Set<MPQOpenOption> mpqOpenOptions;
 
@@ -66,68 +104,238 @@ public class JMpqArchive implements AutoCloseable {
     }
 
     public JMpqArchive(Path mpqArchive, MPQOpenOption... openOptions) throws IOException {
-        this(FileChannel.open(mpqArchive, StandardOpenOption.READ), openOptions);
+        this(mpqArchive, FileChannel.open(mpqArchive, StandardOpenOption.READ), openOptions);
     }
 
-    private JMpqArchive(FileChannel fileChannel, MPQOpenOption... openOptions) throws IOException {
+    private JMpqArchive(Path mpqArchive, FileChannel fileChannel, MPQOpenOption... openOptions) throws IOException {
         this.fileChannel = fileChannel;
         this.mpqOpenOptions = Util.toImmutableEnumSet(List.of(openOptions));
+        try {
+            this.mappedArchive = isMemoryMapped() ? new MappedArchive(fileChannel) : null;
 
-        readMpq();
+            readMpq(mpqArchive);
+        } catch (IOException | RuntimeException e) {
+            // not an archive or unreadable, the channel is not handed out so close it here
+            try {
+                fileChannel.close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
     }
 
-    private void readMpq() throws IOException {
-        headerOffset = searchHeader();
+    private void readMpq(Path mpqArchive) throws IOException {
+        final boolean useIndexCache = mpqOpenOptions.contains(MPQOpenOption.INDEX_CACHE);
+        if (!useIndexCache || !loadIndexCache(mpqArchive)) {
+            headerOffset = searchHeader();
+
+            readHeaderSize();
+
+            readHeader();
 
-        readHeaderSize();
+            checkLegacyCompat();
 
-        readHeader();
+            if (useIndexCache) {
+                writeIndexCache(mpqArchive);
+            } else if (!mpqOpenOptions.contains(MPQOpenOption.LAZY_TABLES)) {
+                hashTable();
+                blockTable();
+            }
+        }
+    }
 
-        checkLegacyCompat();
+    /**
+     * Loads the header and tables from the index cache of the archive.
+     *
+     * @return true if a valid cache was loaded, otherwise false.
+     */
+    private boolean loadIndexCache(Path mpqArchive) throws IOException {
+        final IndexCache cache = IndexCache.load(IndexCache.sidecarOf(mpqArchive), fileChannel.size(),
+            Files.getLastModifiedTime(mpqArchive).toMillis(), isLegacyCompatibility());
+        if (cache == null)
+            return false;
+
+        // the raw header bytes are the fingerprint of the archive
+        final IndexCache.Header header = cache.getHeader();
+        if (header.headerOffset() + header.rawHeader().length > fileChannel.size())
+            return false;
+        final ByteBuffer rawHeader = ByteBuffer.allocate(header.rawHeader().length);
+        Util.readFully(rawHeader, fileChannel, header.headerOffset());
+        if (!Arrays.equals(rawHeader.array(), header.rawHeader()))
+            return false;
+
+        headerOffset = header.headerOffset();
+        if (header.userDataPosition() >= 0)
+            userData = readUserData(header.userDataPosition());
+        headerSize = header.headerSize();
+        archiveSize = header.archiveSize();
+        formatVersion = header.formatVersion();
+        discBlockSize = header.discBlockSize();
+        hashTablePosition = header.hashTablePosition();
+        blockTablePosition = header.blockTablePosition();
+        hashSize = header.hashSize();
+        blockSize = header.blockSize();
+        hashTable = withOptions(cache.getHashTable());
+        blockTable = cache.getBlockTable();
+        indexCache = cache;
+        return true;
+    }
 
-        readHashTable();
+    /**
+     * Writes the index cache of the archive. The cache is an optimization, so
+     * failing to write it is not an error.
+     */
+    private void writeIndexCache(Path mpqArchive) throws IOException {
+        final HashTable hashTable = hashTable();
+        final BlockTable blockTable = blockTable();
+        try {
+            final ByteBuffer rawHeader = ByteBuffer.allocate(8 + headerSize);
+            Util.readFully(rawHeader, fileChannel, headerOffset);
+            final IndexCache.Header header = new IndexCache.Header(headerOffset, userData != null ? userData.position() : -1,
+                headerSize, archiveSize, formatVersion, discBlockSize, hashTablePosition, blockTablePosition, hashSize,
+                blockSize, rawHeader.array());
+
+            // names are needed to decrypt the sector offset tables of encrypted files
+            byte[] listfile = null;
+            ArchiveDirectory directory = null;
+            final Map<Integer, String> names = new HashMap<>();
+            if (hasFile(LIST_FILE)) {
+                listfile = getMpqFile(LIST_FILE).extractToBytes();
+                directory = buildDirectory(Listfile.from(listfile));
+                for (int i = 0; i < directory.size(); i++)
+                    names.putIfAbsent(directory.getBlockIndex(i), directory.getName(i));
+            }
+
+            final int[][] sectorOffsets = new int[blockTable.size()][];
+            for (int i = 0; i < sectorOffsets.length; i++) {
+                final Block b = blockTable.getBlock(i);
+                final String name = names.get(i);
+                if (!b.hasFlag(Block.EXISTS) || (b.hasFlag(ENCRYPTED) && name == null))
+                    continue;
+
+                try {
+                    final SectorReader reader = newSectorReader(b, i, name != null ? name : "");
+                    if (reader.hasSectorTable() && (reader.getSectorCount() + 1L) * 4 <= b.compressedSize())
+                        sectorOffsets[i] = reader.getSectorOffsets();
+                } catch (IOException e) {
+                    log.debug("skipped sector offset table of block " + i, e);
+                }
+            }
 
-        readBlockTable();
+            IndexCache.write(IndexCache.sidecarOf(mpqArchive), fileChannel.size(),
+                Files.getLastModifiedTime(mpqArchive).toMillis(), isLegacyCompatibility(), header, hashTable, blockTable,
+                listfile, directory, sectorOffsets);
+        } catch (IOException e) {
+            log.debug("could not write index cache of " + mpqArchive, e);
+        }
     }
 
     /**
      * Searches the file for the MPQ archive header.
+     * <p>
+     * The header is searched for at every 512 byte boundary, reading the file
+     * in large chunks. User data headers are followed directly to the archive
+     * header they point to.
      *
      * @return the file position at which the MPQ archive starts.
      * @throws IOException   if an error occurs while searching.
      * @throws JMpqException if file does not contain a MPQ archive.
      */
     private long searchHeader() throws IOException {
-        // probe to sample file with
-        ByteBuffer probe = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        final ByteBuffer chunk = ByteBuffer.allocate(SEARCH_CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        final ByteBuffer probe = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
 
         final long fileSize = fileChannel.size();
-        for (long filePos = 0; filePos + probe.capacity() < fileSize; filePos += 0x200) {
-            probe.rewind();
-            Util.readFully(probe, fileChannel, filePos);
-
-            final int sample = probe.getInt(0);
-            if (sample == ARCHIVE_HEADER_MAGIC) {
-                // found archive header
-                return filePos;
-            } else if (sample == USER_DATA_HEADER_MAGIC && !isLegacyCompatibility()) {
-                // MPQ user data header with redirect to MPQ header
-                // ignore in legacy compatibility mode
-
-                // TODO process these in some meaningful way
-
-                probe.rewind();
-                Util.readFully(probe, fileChannel, filePos + 8);
-
-                // add header offset and align
-                filePos += (probe.getInt(0) & 0xFFFFFFFFL);
-                filePos &= -0x200;
+        long chunkPos = 0;
+        search:
+        while (chunkPos + 4 < fileSize) {
+            chunk.clear();
+            chunk.limit((int) Math.min(chunk.capacity(), fileSize - chunkPos));
+            Util.readFully(chunk, fileChannel, chunkPos);
+
+            for (int offset = 0; offset + 4 <= chunk.limit() && chunkPos + offset + 4 < fileSize; offset += 0x200) {
+                final long filePos = chunkPos + offset;
+                final int sample = chunk.getInt(offset);
+                if (sample == ARCHIVE_HEADER_MAGIC) {
+                    // found archive header
+                    return filePos;
+                } else if (sample == USER_DATA_HEADER_MAGIC && !isLegacyCompatibility()) {
+                    // MPQ user data header with redirect to MPQ header
+                    // ignore in legacy compatibility mode
+                    final long headerOffs = readUserDataHeaderOffset(filePos);
+                    if (headerOffs < 0)
+                        continue;
+
+                    final long headerPos = filePos + headerOffs;
+                    if (headerPos + 4 < fileSize) {
+                        probe.clear();
+                        Util.readFully(probe, fileChannel, headerPos);
+                        if (probe.getInt(0) == ARCHIVE_HEADER_MAGIC) {
+                            // only read the user data once the redirect is confirmed
+                            userData = readUserData(filePos);
+                            return headerPos;
+                        }
+                    }
+
+                    // continue searching after the redirect
+                    chunkPos = (headerPos + 0x1FF) & -0x200;
+                    continue search;
+                }
             }
+            chunkPos += chunk.limit();
         }
 
         throw new JMpqException("No MPQ archive in file.");
     }
 
+    /**
+     * Reads the archive header offset of a user data header.
+     *
+     * @return offset of the archive header from the user data header, or -1
+     *         if the header does not point past itself.
+     */
+    private long readUserDataHeaderOffset(long filePos) throws IOException {
+        if (filePos + MpqUserData.HEADER_SIZE > fileChannel.size())
+            return -1;
+
+        final ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        Util.readFully(header, fileChannel, filePos + 8);
+        final long headerOffs = header.getInt(0) & 0xFFFFFFFFL;
+        return headerOffs < MpqUserData.HEADER_SIZE ? -1 : headerOffs;
+    }
+
+    /**
+     * Reads a user data header and the user data following it. The user data
+     * is bounded by its maximum size, the archive header and the end of the
+     * file.
+     *
+     * @return the user data, or null if the header does not point past itself.
+     * @throws JMpqException if the user data is too large to be held in memory.
+     */
+    private MpqUserData readUserData(long filePos) throws IOException {
+        final long fileSize = fileChannel.size();
+        if (filePos + MpqUserData.HEADER_SIZE > fileSize)
+            return null;
+
+        final ByteBuffer header = ByteBuffer.allocate(MpqUserData.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        Util.readFully(header, fileChannel, filePos);
+        final int maxSize = header.getInt(4);
+        final long headerOffs = header.getInt(8) & 0xFFFFFFFFL;
+        final long dataSize = header.getInt(12) & 0xFFFFFFFFL;
+        if (headerOffs < MpqUserData.HEADER_SIZE)
+            return null;
+
+        final long available = Math.min(headerOffs, fileSize - filePos) - MpqUserData.HEADER_SIZE;
+        final long length = Math.min(Math.min(dataSize, Integer.toUnsignedLong(maxSize)), available);
+        if (length > Integer.MAX_VALUE - 8)
+            throw new JMpqException("User data too large <" + length + ">.");
+
+        final ByteBuffer data = ByteBuffer.allocate((int) length);
+        Util.readFully(data, fileChannel, filePos + MpqUserData.HEADER_SIZE);
+        return new MpqUserData(filePos, maxSize, headerOffs, data.array());
+    }
+
     private void readHeaderSize() throws IOException {
         // probe to sample file with
         ByteBuffer probe = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
@@ -188,7 +396,45 @@ public class JMpqArchive implements AutoCloseable {
         }
     }
 
-    private void readHashTable() throws IOException {
+    /**
+     * Get the hash table, reading it on first use.
+     */
+    private HashTable hashTable() throws IOException {
+        HashTable table = hashTable;
+        if (table == null) {
+            synchronized (this) {
+                table = hashTable;
+                if (table == null) {
+                    table = withOptions(readHashTable());
+                    hashTable = table;
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Get the block table, reading it on first use.
+     */
+    private BlockTable blockTable() throws IOException {
+        BlockTable table = blockTable;
+        if (table == null) {
+            synchronized (this) {
+                table = blockTable;
+                if (table == null) {
+                    table = readBlockTable();
+                    blockTable = table;
+                }
+            }
+        }
+        return table;
+    }
+
+    private HashTable withOptions(HashTable table) {
+        return mpqOpenOptions.contains(MPQOpenOption.BLOOM_FILTER) ? table.withKeyFilter() : table;
+    }
+
+    private HashTable readHashTable() throws IOException {
         // read hash table
         ByteBuffer hashBuffer = ByteBuffer.allocate(hashSize * 16);
         Util.readFully(hashBuffer, fileChannel, headerOffset + hashTablePosition);
@@ -200,57 +446,266 @@ public class JMpqArchive implements AutoCloseable {
         hashBuffer.rewind();
 
         // create hash table
-        hashTable = HashTable.fromBuffer(hashBuffer, hashSize);
+        return HashTable.fromBuffer(hashBuffer, hashSize);
     }
 
-    private void readBlockTable() throws IOException {
+    private BlockTable readBlockTable() throws IOException {
         ByteBuffer blockBuffer = ByteBuffer.allocate(blockSize * 16).order(ByteOrder.LITTLE_ENDIAN);
         Util.readFully(blockBuffer, fileChannel, headerOffset + blockTablePosition);
         blockBuffer.rewind();
-        blockTable = BlockTable.readFrom(blockBuffer);
+        return BlockTable.readFrom(blockBuffer);
     }
 
     public int getTotalFileCount() {
-        return blockTable.getAllVaildBlocks().size();
+        return getBlockTable().getAllVaildBlocks().size();
     }
 
     public boolean hasFile(String name) {
-        return hashTable.hasFile(name);
+        return getHashTable().hasFile(name);
+    }
+
+    public boolean hasFile(FileIdentifier file) {
+        return getHashTable().hasFile(file);
+    }
+
+    /**
+     * Looks up the block table entry of a pre-resolved file. The identifier does not depend on the archive, so a
+     * file name can be resolved once with {@link FileIdentifier#of(String)} and looked up in many archives without
+     * hashing it again. This does not read any file data.
+     *
+     * @return the block of the file, or null if this archive has no mapping for it.
+     */
+    public Block lookup(FileIdentifier file) throws IOException {
+        int pos = hashTable().findBlockIndex(file);
+        return pos == -1 ? null : blockTable().getBlockAtPos(pos);
     }
 
     public Listfile getListFile() throws IOException {
+        final byte[] cached = indexCache != null ? indexCache.getListfile() : null;
+        if (cached != null)
+            return Listfile.from(cached);
+
         MpqFile mpqFile = getMpqFile(LIST_FILE);
         byte[] data = mpqFile.extractToBytes();
         return Listfile.from(data);
     }
 
+    /**
+     * Get the directory of the list file of this archive, resolved for the default locale. When opened with
+     * {@link MPQOpenOption#INDEX_CACHE} the directory is read from the cache instead of resolving the list file again.
+     *
+     * @return directory of the list file.
+     * @throws IOException if the archive has no list file or it could not be read.
+     */
+    public ArchiveDirectory getDirectory() throws IOException {
+        final ArchiveDirectory cached = indexCache != null ? indexCache.getDirectory() : null;
+        return cached != null ? cached : buildDirectory(getListFile());
+    }
+
+    /**
+     * Resolves every name of the list file against this archive in parallel, see {@link ArchiveDirectory}. Names
+     * without a mapping in this archive are left out.
+     */
+    public ArchiveDirectory buildDirectory(Listfile listfile) {
+        return buildDirectory(listfile, HashTable.DEFAULT_LOCALE);
+    }
+
+    /**
+     * Resolves every name of the list file against this archive in parallel, preferring the specified locale. See
+     * {@link ArchiveDirectory}.
+     */
+    public ArchiveDirectory buildDirectory(Listfile listfile, short locale) {
+        return ArchiveDirectory.build(getHashTable(), getBlockTable(), listfile.getFiles(), locale);
+    }
+
+    /**
+     * Extracts the files named by the list file into a directory, keeping their paths. Block data is read in file
+     * order by the calling thread while decrypting, decompressing and writing is spread over a pool of threads. At
+     * most two files per thread are read ahead. Output files are extended to their final size before the data is
+     * written sector by sector.
+     *
+     * @param target  directory to extract into.
+     * @param options file filter and thread count.
+     * @return number of files extracted.
+     * @throws IOException if the archive has no list file, or a file could not be extracted or written.
+     */
+    public int extractAll(Path target, ExtractOptions options) throws IOException {
+        final Path root = target.toAbsolutePath().normalize();
+        final List<ArchiveDirectory.Entry> entries = getDirectory().stream()
+            .filter(entry -> entry.block().hasFlag(Block.EXISTS) && !entry.block().hasFlag(Block.DELETED))
+            .filter(entry -> options.filter().test(entry.name()))
+            .sorted(Comparator.comparingLong(entry -> entry.block().getFilePosUnsigned()))
+            .toList();
+
+        Files.createDirectories(root);
+        final ExecutorService pool = Executors.newFixedThreadPool(options.threads());
+        final Semaphore readAhead = new Semaphore(options.threads() * 2);
+        final List<Future<?>> tasks = new ArrayList<>(entries.size());
+        final AtomicBoolean failed = new AtomicBoolean();
+        try {
+            for (ArchiveDirectory.Entry entry : entries) {
+                final Path file = root.resolve(entry.name().replace('\\', '/')).normalize();
+                if (!file.startsWith(root) || file.equals(root))
+                    throw new JMpqException("File name outside of target directory <" + entry.name() + ">.");
+
+                readAhead.acquire();
+                final SectorReader reader;
+                try {
+                    reader = new SectorReader(SectorReader.BlockSource.of(readBlock(entry.block())), entry.block(),
+                        discBlockSize, entry.name(), formatVersion, getCachedSectorOffsets(entry.blockIndex()));
+                } catch (IOException | RuntimeException e) {
+                    readAhead.release();
+                    throw e;
+                }
+                tasks.add(pool.submit(() -> {
+                    try {
+                        extractTo(reader, file);
+                    } catch (IOException | RuntimeException e) {
+                        failed.set(true);
+                        throw e;
+                    } finally {
+                        readAhead.release();
+                    }
+                    return null;
+                }));
+
+                // stop reading once a file failed, the failure is reported below
+                if (failed.get())
+                    break;
+            }
+
+            for (Future<?> task : tasks)
+                task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Extraction interrupted.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException cause)
+                throw cause;
+            throw new JMpqException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return entries.size();
+    }
+
+    /**
+     * Decodes a file sector by sector into the specified output file.
+     */
+    private static void extractTo(SectorReader reader, Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+            // extend to the final size up front instead of growing with every sector
+            if (reader.size() > 0)
+                out.write(ByteBuffer.allocate(1), reader.size() - 1);
+
+            final ByteBuffer sector = ByteBuffer.allocate(reader.getSectorSize());
+            long position = 0;
+            for (int i = 0; i < reader.getSectorCount(); i++) {
+                sector.clear();
+                reader.readSector(i, sector);
+                sector.flip();
+                while (sector.hasRemaining())
+                    position += out.write(sector, position);
+            }
+        }
+    }
+
     /**
      * Loads an MPQ file into memory and returns a representation of it with the possibility to extract
      * the decrypted and decompressed data. See {@link MpqFile}
      */
     public MpqFile getMpqFile(String name) throws IOException {
-        int pos = hashTable.getBlockIndexOfFile(name);
-        Block b = blockTable.getBlockAtPos(pos);
+        return getMpqFile(FileIdentifier.of(name));
+    }
 
-        ByteBuffer buffer = ByteBuffer.allocate(b.compressedSize()).order(ByteOrder.LITTLE_ENDIAN);
-        Util.readFully(buffer, fileChannel, headerOffset + b.getFilePosUnsigned());
+    /**
+     * Loads a pre-resolved file into memory, see {@link JMpqArchive#getMpqFile(String)} and
+     * {@link JMpqArchive#lookup(FileIdentifier)}. Encrypted files can only be loaded if the identifier has a name.
+     */
+    public MpqFile getMpqFile(FileIdentifier file) throws IOException {
+        int pos = hashTable().getFileBlockIndex(file);
+        Block b = blockTable().getBlockAtPos(pos);
+        if (file.name() == null && b.hasFlag(ENCRYPTED))
+            throw new JMpqException("Encrypted file requires a name <" + Long.toHexString(file.key()) + ">.");
+
+        final String name = file.name() != null ? file.name() : "";
+        final SectorReader reader = new SectorReader(SectorReader.BlockSource.of(readBlock(b)), b, discBlockSize, name,
+            formatVersion, getCachedSectorOffsets(pos));
+        return new MpqFile(reader, b, name);
+    }
 
-        return new MpqFile(buffer.array(), b, discBlockSize, name, formatVersion);
+    /**
+     * Opens a stream which reads, decrypts and decompresses the specified file one sector at a time. Unlike
+     * {@link JMpqArchive#getMpqFile(String)} the file is not loaded into memory, so heap use is bounded by the sector
+     * size regardless of file size. The stream must not be used after this archive is closed.
+     */
+    public InputStream openStream(String name) throws IOException {
+        return new SectorInputStream(getSectorReader(name));
+    }
+
+    /**
+     * Opens a read only channel over the decrypted and decompressed data of the specified file. Data is decoded one
+     * sector at a time as it is read, keeping recently used sectors cached for seeking. The channel must not be used
+     * after this archive is closed.
+     */
+    public SeekableByteChannel newByteChannel(String name) throws IOException {
+        return new SectorByteChannel(getSectorReader(name));
+    }
+
+    /**
+     * Get the block table entry of the specified file. This does not read any file data.
+     */
+    public Block getBlock(String name) throws IOException {
+        int pos = hashTable().getBlockIndexOfFile(name);
+        return blockTable().getBlockAtPos(pos);
+    }
+
+    private SectorReader getSectorReader(String name) throws IOException {
+        int pos = hashTable().getBlockIndexOfFile(name);
+        return newSectorReader(blockTable().getBlockAtPos(pos), pos, name);
+    }
+
+    private SectorReader newSectorReader(Block b, int pos, String name) throws IOException {
+        final SectorReader.BlockSource source;
+        if (mappedArchive != null) {
+            source = SectorReader.BlockSource.of(mappedArchive.slice(headerOffset + b.getFilePosUnsigned(), b.compressedSize()));
+        } else {
+            source = SectorReader.BlockSource.of(fileChannel, headerOffset + b.getFilePosUnsigned());
+        }
+        return new SectorReader(source, b, discBlockSize, name, formatVersion, getCachedSectorOffsets(pos));
+    }
+
+    private int[] getCachedSectorOffsets(int pos) {
+        return indexCache != null ? indexCache.getSectorOffsets(pos) : null;
     }
 
     public MpqFile getMpqFileByBlock(Block block) throws IOException {
         if (block.hasFlag(ENCRYPTED))
             throw new IOException("cant access this block");
 
-        ByteBuffer buffer = ByteBuffer.allocate(block.compressedSize()).order(ByteOrder.LITTLE_ENDIAN);
-        Util.readFully(buffer, fileChannel, headerOffset + block.getFilePosUnsigned());
+        return new MpqFile(readBlock(block), block, discBlockSize, "", formatVersion);
+    }
+
+    /**
+     * Get the raw data of a block. Memory mapped archives return a view of the
+     * mapping, otherwise the data is read into a new heap buffer.
+     */
+    private ByteBuffer readBlock(Block block) throws IOException {
+        final long filePos = headerOffset + block.getFilePosUnsigned();
+        if (mappedArchive != null)
+            return mappedArchive.slice(filePos, block.compressedSize());
 
-        return new MpqFile(buffer.array(), block, discBlockSize, "", formatVersion);
+        ByteBuffer buffer = ByteBuffer.allocate(block.compressedSize()).order(ByteOrder.LITTLE_ENDIAN);
+        Util.readFully(buffer, fileChannel, filePos);
+        buffer.rewind();
+        return buffer;
     }
 
     public List<MpqFile> getMpqFilesByBlockTable() {
         List<MpqFile> mpqFiles = new ArrayList<>();
-        List<Block> list = blockTable.getAllVaildBlocks();
+        List<Block> list = getBlockTable().getAllVaildBlocks();
         for (Block block : list) {
             try {
                 MpqFile mpqFile = getMpqFileByBlock(block);
@@ -261,12 +716,43 @@ public class JMpqArchive implements AutoCloseable {
         return mpqFiles;
     }
 
+    /**
+     * Get the user data in front of the archive, as located by the user data header which redirected to the
+     * archive header.
+     *
+     * @return the user data, or null if the archive has no user data header.
+     */
+    public MpqUserData getUserData() {
+        return userData;
+    }
+
     public boolean isLegacyCompatibility() {
         return mpqOpenOptions.contains(MPQOpenOption.FORCE_V0);
     }
 
+    public boolean isMemoryMapped() {
+        return mpqOpenOptions.contains(MPQOpenOption.MEMORY_MAPPED);
+    }
+
+    /**
+     * Get the block table, reading it first if it was not read yet.
+     *
+     * @throws UncheckedIOException if the block table could not be read.
+     */
     public BlockTable getBlockTable() {
-        return blockTable;
+        try {
+            return blockTable();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    HashTable getHashTable() {
+        try {
+            return hashTable();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     @Override
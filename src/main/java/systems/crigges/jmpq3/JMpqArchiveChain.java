@@ -0,0 +1,233 @@
+package systems.crigges.jmpq3;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static systems.crigges.jmpq3.Block.DELETED;
+
+/**
+ * <p>
+ * Provides a single view over a chain of MPQ archives where later archives
+ * override files of earlier ones, such as the base, patch and locale archives
+ * loaded by World of Warcraft. A file is taken from the last archive of the
+ * chain that has a mapping for it. If that mapping is marked
+ * {@link Block#DELETED} the file is treated as removed by the patch and
+ * earlier archives are not consulted.
+ * <p>
+ * The hash tables of all archives are merged into one index of the last
+ * archive using each file key when the chain is opened, so finding the
+ * archive holding a file is a probe of the index followed by a probe of that
+ * archive, regardless of chain length. The mapping, and so the locale, is
+ * chosen by the hash table of the archive in the same way as
+ * {@link JMpqArchive#getMpqFile(FileIdentifier)}.
+ * <p>
+ * Like {@link JMpqArchive} this class is effectively immutable, and therefore
+ * safe to use concurrently.
+ */
+@ThreadSafe
+public class JMpqArchiveChain implements AutoCloseable {
+
+    private final List<JMpqArchive> archives;
+
+    private final MergedIndex index;
+
+    /**
+     * Opens a chain of archives.
+     *
+     * @param archives    archive paths, from lowest to highest priority.
+     * @param openOptions options used to open every archive.
+     * @throws IOException if an archive could not be opened.
+     */
+    public JMpqArchiveChain(List<Path> archives, MPQOpenOption... openOptions) throws IOException {
+        final List<JMpqArchive> opened = new ArrayList<>(archives.size());
+        try {
+            for (Path archive : archives)
+                opened.add(new JMpqArchive(archive, openOptions));
+        } catch (IOException | RuntimeException e) {
+            for (JMpqArchive archive : opened) {
+                try {
+                    archive.close();
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw e;
+        }
+
+        this.archives = Collections.unmodifiableList(opened);
+        this.index = MergedIndex.build(opened);
+    }
+
+    /**
+     * Get the archives of this chain, from lowest to highest priority.
+     */
+    public List<JMpqArchive> getArchives() {
+        return archives;
+    }
+
+    public boolean hasFile(String name) {
+        return hasFile(FileIdentifier.of(name));
+    }
+
+    public boolean hasFile(FileIdentifier file) {
+        return findArchive(file) != null;
+    }
+
+    /**
+     * Find the archive the specified file is taken from.
+     *
+     * @return the archive, or null if no archive has the file or the file was
+     *         deleted by a patch.
+     */
+    public JMpqArchive findArchive(FileIdentifier file) {
+        final int entry = index.find(file.key());
+        if (entry == -1)
+            return null;
+
+        // a mapping the probe of its own archive cannot reach is skipped,
+        // as the archive would not find the file either
+        for (int a = index.archiveIndices[entry]; a >= 0; a--) {
+            final JMpqArchive archive = archives.get(a);
+            final int blockIndex = archive.getHashTable().findBlockIndex(file);
+            if (blockIndex == -1 || blockIndex >= archive.getBlockTable().size())
+                continue;
+            return archive.getBlockTable().getBlock(blockIndex).hasFlag(DELETED) ? null : archive;
+        }
+        return null;
+    }
+
+    /**
+     * Look up the block table entry of the specified file, see
+     * {@link JMpqArchive#lookup(FileIdentifier)}.
+     *
+     * @return the block of the file, or null if no archive has the file or the
+     *         file was deleted by a patch.
+     */
+    public Block lookup(FileIdentifier file) throws IOException {
+        final JMpqArchive archive = findArchive(file);
+        return archive != null ? archive.lookup(file) : null;
+    }
+
+    public MpqFile getMpqFile(String name) throws IOException {
+        return getMpqFile(FileIdentifier.of(name));
+    }
+
+    /**
+     * Loads the specified file from the archive it is taken from, see
+     * {@link JMpqArchive#getMpqFile(FileIdentifier)}.
+     */
+    public MpqFile getMpqFile(FileIdentifier file) throws IOException {
+        return getArchiveOf(file).getMpqFile(file);
+    }
+
+    /**
+     * Opens a stream over the specified file, see
+     * {@link JMpqArchive#openStream(String)}.
+     */
+    public InputStream openStream(String name) throws IOException {
+        return getArchiveOf(FileIdentifier.of(name)).openStream(name);
+    }
+
+    private JMpqArchive getArchiveOf(FileIdentifier file) throws JMpqException {
+        final JMpqArchive archive = findArchive(file);
+        if (archive == null)
+            throw new JMpqException("File Not Found <" + (file.name() != null ? file.name() : Long.toHexString(file.key())) + ">.");
+        return archive;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (JMpqArchive archive : archives) {
+            try {
+                archive.close();
+            } catch (IOException e) {
+                if (failure == null)
+                    failure = e;
+                else
+                    failure.addSuppressed(e);
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Open addressing map from 64 bit file key to the last archive with a
+     * mapping for the key.
+     */
+    private static final class MergedIndex {
+
+        private final long[] keys;
+        private final int[] archiveIndices;
+        private final int shift;
+
+        private MergedIndex(int capacity) {
+            this.keys = new long[capacity];
+            this.archiveIndices = new int[capacity];
+            this.shift = 64 - Integer.numberOfTrailingZeros(capacity);
+            Arrays.fill(archiveIndices, -1);
+        }
+
+        static MergedIndex build(List<JMpqArchive> archives) {
+            // size from the buckets in use, hash tables are mostly empty
+            int entries = 0;
+            for (JMpqArchive archive : archives) {
+                final HashTable hashTable = archive.getHashTable();
+                final int blockCount = archive.getBlockTable().size();
+                for (int i = 0; i < hashTable.getCapacity(); i++) {
+                    final int blockIndex = hashTable.getEntryBlockIndex(i);
+                    if (blockIndex >= 0 && blockIndex < blockCount)
+                        entries++;
+                }
+            }
+            // load factor of at most 0.75
+            final int minCapacity = entries + entries / 3 + 1;
+            final MergedIndex index = new MergedIndex(Math.max(2, Integer.highestOneBit(minCapacity - 1) << 1));
+
+            for (int a = 0; a < archives.size(); a++) {
+                final HashTable hashTable = archives.get(a).getHashTable();
+                final int blockCount = archives.get(a).getBlockTable().size();
+
+                for (int i = 0; i < hashTable.getCapacity(); i++) {
+                    final int blockIndex = hashTable.getEntryBlockIndex(i);
+                    if (blockIndex < 0 || blockIndex >= blockCount)
+                        continue;
+
+                    // later archives override earlier ones
+                    final int slot = index.slot(hashTable.getEntryKey(i));
+                    index.keys[slot] = hashTable.getEntryKey(i);
+                    index.archiveIndices[slot] = a;
+                }
+            }
+            return index;
+        }
+
+        /**
+         * Find the slot of a key, or the empty slot it would be stored in.
+         */
+        private int slot(long key) {
+            final int mask = keys.length - 1;
+            int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+            while (archiveIndices[slot] != -1 && keys[slot] != key)
+                slot = slot + 1 & mask;
+            return slot;
+        }
+
+        /**
+         * Find the slot of a key.
+         *
+         * @return the slot, or -1 if the key is not in the index.
+         */
+        int find(long key) {
+            final int slot = slot(key);
+            return archiveIndices[slot] == -1 ? -1 : slot;
+        }
+    }
+}
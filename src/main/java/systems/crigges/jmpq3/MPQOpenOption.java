@@ -15,5 +15,36 @@ public enum MPQOpenOption {
      * files to be opened. Behaviour is undefined if used on archive files that
      * are formated using version 1 or newer.
      */
-    FORCE_V0
+    FORCE_V0,
+    /**
+     * Memory map the archive file instead of reading file data into heap
+     * buffers. Files returned by the archive hold a read only view of the
+     * mapping, so extracting a file never copies its compressed data to the
+     * heap. Archives larger than 2 GB are mapped as several regions.
+     */
+    MEMORY_MAPPED,
+    /**
+     * Build a Bloom filter over the hash table keys when the archive is
+     * opened. Lookups of files the archive does not contain are then usually
+     * rejected without probing the hash table, which speeds up searching many
+     * archives for a file. Costs 2 to 4 bytes of heap per file.
+     */
+    BLOOM_FILTER,
+    /**
+     * Keep a cache of the decrypted tables, list file and sector offset tables
+     * in a sidecar file next to the archive, named after the archive with a
+     * ".jmpqidx" extension. Reopening an unchanged archive loads the tables
+     * from the cache instead of reading and decrypting them. The cache is
+     * rebuilt when the archive size, modification time or header changes.
+     * Failing to write the cache is not an error.
+     */
+    INDEX_CACHE,
+    /**
+     * Only read the archive header when opening the archive. The hash table
+     * and block table are read and decrypted on first use, each on its own,
+     * so checking {@link JMpqArchive#hasFile(String)} never reads the block
+     * table. Errors reading a table are reported by the first operation using
+     * it rather than by the constructor.
+     */
+    LAZY_TABLES
 }
@@ -0,0 +1,86 @@
+package systems.crigges.jmpq3;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read only memory mapping of an entire archive file.
+ * <p>
+ * A single {@link MappedByteBuffer} can address at most 2 GB, so the file is
+ * mapped as a sequence of regions. Regions start every {@link #REGION_STRIDE}
+ * bytes but extend {@link #REGION_OVERLAP} bytes into the next region so that
+ * almost all blocks can be served as a slice of a single region. Blocks which
+ * still cross a region boundary are copied out of the regions they span.
+ * <p>
+ * The file channel is only used to create the regions. Mappings stay valid
+ * after it is closed and are released when they are garbage collected.
+ */
+@ThreadSafe
+final class MappedArchive {
+
+    /**
+     * Distance between the start of two consecutive regions.
+     */
+    private static final long REGION_STRIDE = 1L << 30;
+
+    /**
+     * Number of bytes a region extends past the start of the next region.
+     */
+    private static final long REGION_OVERLAP = 1L << 26;
+
+    private final long fileSize;
+    private final MappedByteBuffer[] regions;
+
+    MappedArchive(FileChannel fileChannel) throws IOException {
+        this.fileSize = fileChannel.size();
+
+        final int regionCount = (int) Math.max(1, (fileSize + REGION_STRIDE - 1) / REGION_STRIDE);
+        regions = new MappedByteBuffer[regionCount];
+        for (int i = 0; i < regionCount; i++) {
+            final long start = i * REGION_STRIDE;
+            final long size = Math.min(REGION_STRIDE + REGION_OVERLAP, fileSize - start);
+            regions[i] = fileChannel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        }
+    }
+
+    /**
+     * Get a read only view of a range of the archive file. The returned buffer
+     * uses little endian byte order and is positioned at 0.
+     *
+     * @param position file position of the first byte.
+     * @param length   number of bytes.
+     * @return view of the requested range.
+     * @throws JMpqException if the range lies outside of the file.
+     */
+    ByteBuffer slice(long position, int length) throws JMpqException {
+        final int index = (int) (position / REGION_STRIDE);
+        if (position < 0 || length < 0 || index >= regions.length)
+            throw new JMpqException("Invalid file range <" + position + ", " + length + ">.");
+
+        final MappedByteBuffer region = regions[index];
+        final long offset = position - index * REGION_STRIDE;
+        final ByteBuffer view;
+        if (offset + length <= region.capacity()) {
+            view = region.slice((int) offset, length);
+        } else if (position + length <= fileSize) {
+            // crosses a region boundary
+            view = ByteBuffer.allocate(length);
+            for (long current = position; view.hasRemaining(); ) {
+                final int currentIndex = (int) (current / REGION_STRIDE);
+                final int currentOffset = (int) (current - currentIndex * REGION_STRIDE);
+                final int count = Math.min(view.remaining(), regions[currentIndex].capacity() - currentOffset);
+                view.put(regions[currentIndex].slice(currentOffset, count));
+                current += count;
+            }
+            view.flip();
+        } else {
+            throw new JMpqException("Invalid file range <" + position + ", " + length + ">.");
+        }
+
+        return view.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
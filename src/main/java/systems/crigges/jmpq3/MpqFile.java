@@ -1,61 +1,43 @@
-
 package systems.crigges.jmpq3;
 
-import systems.crigges.jmpq3.compression.CompressionUtil;
-import systems.crigges.jmpq3.security.MPQEncryption;
-import systems.crigges.jmpq3.security.MPQHashGenerator;
+import systems.crigges.jmpq3.compression.ExtractionContext;
 
 import javax.annotation.concurrent.Immutable;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.BufferUnderflowException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.Arrays;
-
-import static systems.crigges.jmpq3.Block.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
- * Represents a file from an MPQ archive that is loaded into memory. The in-memory data may be encrypted
- * and/or compressed. Use {@link MpqFile#extractToBytes()} or {@link MpqFile#extractToOutputStream(OutputStream)} in
- * order to extract the decrypted and/or decompressed data. Since this class is effectively immutable, it is safe
- * to do so in a multithreaded setting.
+ * Represents a file from an MPQ archive that is loaded into memory, or a view of a memory mapped archive. The data
+ * may be encrypted and/or compressed. Use {@link MpqFile#extractToBytes()} or {@link MpqFile#extractToOutputStream(OutputStream)} in
+ * order to extract the decrypted and/or decompressed data, or {@link MpqFile#openStream()} to decode it one sector
+ * at a time. Since this class is effectively immutable, it is safe to do so in a multithreaded setting.
  */
 @Immutable
 public class MpqFile {
 
-    private final byte[] buffer;
+    /**
+     * Minimum number of decoded bytes per parallel task.
+     */
+    private static final int MIN_TASK_SIZE = 0x10000;
+
     private final Block block;
     private final String name;
-    private final int archiveVersion;
-    private final boolean isEncrypted;
-    private final int sectorSize;
-    private final int sectorCount;
-    private final int baseKey;
-
-    MpqFile(byte[] buffer, Block b, int sectorSize, String name, int archiveVersion)  {
-        this.buffer = buffer;
+    private final SectorReader sectorReader;
+
+    MpqFile(ByteBuffer buffer, Block b, int sectorSize, String name, int archiveVersion)  {
+        this(new SectorReader(SectorReader.BlockSource.of(buffer), b, sectorSize, name, archiveVersion), b, name);
+    }
+
+    MpqFile(SectorReader sectorReader, Block b, String name) {
         this.block = b;
-        this.sectorSize = sectorSize;
         this.name = name;
-        this.archiveVersion = archiveVersion;
-        this.isEncrypted = b.hasFlag(ENCRYPTED);
-        this.sectorCount = (int) (Math.ceil(((double) block.normalSize() / (double) sectorSize)) + 1);
-
-        int sepIndex = name.lastIndexOf('\\');
-        String pathlessName = name.substring(sepIndex + 1);
-        if (isEncrypted) {
-            final MPQHashGenerator keyGen = MPQHashGenerator.getFileKeyGenerator();
-            keyGen.process(pathlessName);
-            if (b.hasFlag(ADJUSTED_ENCRYPTED)) {
-                this.baseKey = ((keyGen.getHash() + b.getFilePos()) ^ b.normalSize());
-            } else {
-                this.baseKey = keyGen.getHash();
-            }
-        } else {
-            this.baseKey = 0;
-        }
+        this.sectorReader = sectorReader;
     }
 
     public String getName() {
@@ -66,139 +48,154 @@ public class MpqFile {
      * Decrypts and decompresses the data in this file and returns a raw byte array.
      */
     public byte[] extractToBytes() throws IOException {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        extractToOutputStream(byteArrayOutputStream);
-        byte[] bytes = byteArrayOutputStream.toByteArray();
-        byteArrayOutputStream.close();
+        byte[] bytes = new byte[(int) sectorReader.size()];
+        extractTo(bytes, 0);
         return bytes;
     }
 
     /**
-     * Decrypts and decompresses the data in this file and writes it to the given output stream
+     * Decrypts and decompresses the data in this file into the given buffer, which may be a heap or a direct buffer.
+     * Sectors stored without compression are read and decrypted in place.
+     *
+     * @param dst destination buffer, its position is advanced by the size of the file.
+     * @return number of bytes written.
+     * @throws java.nio.BufferOverflowException if the buffer has not enough space remaining for the file.
      */
-    public void extractToOutputStream(OutputStream outputStream) throws IOException {
-        if (sectorCount == 1) {
-            outputStream.close();
-            return;
-        }
-        if (extractImplodedBlock(outputStream)) return;
-        if (extractSingleUnitBlock(outputStream)) return;
-        if (block.hasFlag(COMPRESSED)) {
-            extractCompressedBlock(outputStream);
-        } else {
-            check(outputStream);
-        }
+    public int extractTo(ByteBuffer dst) throws IOException {
+        return extractTo(dst, ExtractionContext.current());
     }
 
-    private void extractCompressedBlock(OutputStream outputStream) throws IOException {
-        byte[] sot = Arrays.copyOfRange(buffer, 0, sectorCount * 4);
+    /**
+     * Decrypts and decompresses the data in this file into the given buffer, see {@link MpqFile#extractTo(ByteBuffer)},
+     * reusing the codecs and scratch space of the given context instead of the one of the current thread.
+     *
+     * @param dst     destination buffer, its position is advanced by the size of the file.
+     * @param context context owned by the calling thread.
+     * @return number of bytes written.
+     * @throws java.nio.BufferOverflowException if the buffer has not enough space remaining for the file.
+     */
+    public int extractTo(ByteBuffer dst, ExtractionContext context) throws IOException {
+        final int size = (int) sectorReader.size();
+        if (dst.remaining() < size)
+            throw new BufferOverflowException();
 
-        if (isEncrypted) {
-            new MPQEncryption(baseKey - 1, true).processSingle(ByteBuffer.wrap(sot));
+        for (int i = 0; i < sectorReader.getSectorCount(); i++) {
+            sectorReader.readSector(i, dst, context);
         }
-        ByteBuffer sotBuffer = ByteBuffer.wrap(sot).order(ByteOrder.LITTLE_ENDIAN);
-        int start = sotBuffer.getInt();
-        int end = sotBuffer.getInt();
-        int finalSize = 0;
-        for (int i = 0; i < sectorCount - 1; i++) {
-            byte[] arr = Arrays.copyOfRange(buffer, start, end);
-            if (isEncrypted) {
-                new MPQEncryption(baseKey + i, true).processSingle(ByteBuffer.wrap(arr));
-            }
-            if (block.normalSize() - finalSize <= sectorSize) {
-                arr = decompressSector(arr, end - start, block.normalSize() - finalSize);
-            } else {
-                arr = decompressSector(arr, end - start, sectorSize);
-            }
-            outputStream.write(arr);
+        return size;
+    }
 
-            finalSize += sectorSize;
-            start = end;
-            try {
-                end = sotBuffer.getInt();
-            } catch (BufferUnderflowException e) {
-                break;
-            }
-        }
-        outputStream.flush();
-        outputStream.close();
+    /**
+     * Decrypts and decompresses the data in this file into the given array, see {@link MpqFile#extractTo(ByteBuffer)}.
+     *
+     * @param dst destination array.
+     * @param off offset in the array to write the file at.
+     * @return number of bytes written.
+     * @throws java.nio.BufferOverflowException if the array has not enough space after the offset for the file.
+     */
+    public int extractTo(byte[] dst, int off) throws IOException {
+        return extractTo(ByteBuffer.wrap(dst, off, dst.length - off));
     }
 
-    private boolean extractSingleUnitBlock(OutputStream writer) throws IOException {
-        if (block.hasFlag(SINGLE_UNIT)) {
-            if (block.hasFlag(COMPRESSED)) {
-                byte[] arr = Arrays.copyOfRange(buffer, 0, block.compressedSize());
-                if (isEncrypted) {
-                    new MPQEncryption(baseKey, true).processSingle(ByteBuffer.wrap(arr));
-                }
-                arr = decompressSector(arr, block.compressedSize(), block.normalSize());
-                writer.write(arr);
-                writer.flush();
-                writer.close();
+    /**
+     * Decrypts and decompresses the data in this file and returns a raw byte array. Sectors are decoded in parallel on
+     * the given pool, each one written to its own offset of the result. Files with few sectors are decoded on the
+     * calling thread.
+     *
+     * @param pool pool decoding the sectors.
+     */
+    public byte[] extractToBytes(ForkJoinPool pool) throws IOException {
+        final byte[] bytes = new byte[(int) sectorReader.size()];
+        final int sectorCount = sectorReader.getSectorCount();
+        final int grain = Math.max(1, MIN_TASK_SIZE / Math.max(1, sectorReader.getSectorSize()));
+        if (sectorReader.hasSectorTable()) {
+            // load the offset table once instead of racing for it in every task
+            sectorReader.getSectorOffsets();
+        }
+
+        final SectorTask task = new SectorTask(sectorReader, bytes, 0, sectorCount, grain);
+        try {
+            if (sectorCount <= grain) {
+                task.compute();
             } else {
-                check(writer);
+                pool.invoke(task);
             }
-            return true;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
-        return false;
+        return bytes;
     }
 
-    private boolean extractImplodedBlock(OutputStream outputStream) throws IOException {
-        if (!block.hasFlag(IMPLODED))
-            return false;
-
-        byte[] sot = Arrays.copyOfRange(buffer, 0, sectorCount * 4);
-        if (isEncrypted) {
-            new MPQEncryption(baseKey - 1, true).processSingle(ByteBuffer.wrap(sot));
+    /**
+     * Decodes a range of sectors, splitting it in halves down to the grain size.
+     */
+    private static final class SectorTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final SectorReader sectorReader;
+        private final byte[] dst;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        SectorTask(SectorReader sectorReader, byte[] dst, int from, int to, int grain) {
+            this.sectorReader = sectorReader;
+            this.dst = dst;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
         }
-        ByteBuffer sotBuffer = ByteBuffer.wrap(sot).order(ByteOrder.LITTLE_ENDIAN);
-        int start = sotBuffer.getInt();
-        int end = sotBuffer.getInt();
-        int finalSize = 0;
-        for (int i = 0; i < sectorCount - 1; i++) {
-            byte[] arr = Arrays.copyOfRange(buffer, start, end);
-            if (isEncrypted) {
-                new MPQEncryption(baseKey + i, true).processSingle(ByteBuffer.wrap(arr));
-            }
-            if (block.normalSize() - finalSize <= sectorSize) {
-                arr = decompressImplodedSector(arr, end - start, block.normalSize() - finalSize);
-            } else {
-                arr = decompressImplodedSector(arr, end - start, sectorSize);
+
+        @Override
+        protected void compute() {
+            if (to - from > grain) {
+                final int mid = (from + to) >>> 1;
+                invokeAll(new SectorTask(sectorReader, dst, from, mid, grain),
+                        new SectorTask(sectorReader, dst, mid, to, grain));
+                return;
             }
-            outputStream.write(arr);
 
-            finalSize += sectorSize;
-            start = end;
+            final int regular = sectorReader.getSectorSize();
             try {
-                end = sotBuffer.getInt();
-            } catch (BufferUnderflowException e) {
-                break;
+                for (int i = from; i < to; i++) {
+                    final int offset = i * regular;
+                    sectorReader.readSector(i, ByteBuffer.wrap(dst, offset, dst.length - offset));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
         }
-
-        outputStream.flush();
-        outputStream.close();
-
-        return true;
     }
 
-    private void check(OutputStream outputStream) throws IOException {
-        byte[] arr = Arrays.copyOfRange(buffer, 0, block.compressedSize());
-        if (isEncrypted) {
-            new MPQEncryption(baseKey, true).processSingle(ByteBuffer.wrap(arr));
+    /**
+     * Decrypts and decompresses the data in this file and writes it to the given output stream
+     */
+    public void extractToOutputStream(OutputStream outputStream) throws IOException {
+        for (int i = 0; i < sectorReader.getSectorCount(); i++) {
+            outputStream.write(sectorReader.readSector(i));
         }
-        outputStream.write(arr);
         outputStream.flush();
         outputStream.close();
     }
 
-    private byte[] decompressSector(byte[] sector, int normalSize, int uncompressedSize) throws IOException {
-        if(archiveVersion >= 1)
-            return CompressionUtil.decompressVersion2(sector, normalSize, uncompressedSize);
-        return CompressionUtil.decompress(sector, normalSize, uncompressedSize);
+    /**
+     * Returns an input stream which decrypts and decompresses the data in this file one sector at a time.
+     */
+    public InputStream openStream() {
+        return new SectorInputStream(sectorReader);
     }
 
-    private byte[] decompressImplodedSector(byte[] sector, int normalSize, int uncompressedSize) {
-        return CompressionUtil.explode(sector, normalSize, uncompressedSize);
+    /**
+     * Decrypts and decompresses a range of the data in this file and writes it to the given buffer. Only the sectors
+     * overlapping the range are decoded. The range is truncated at the end of the file.
+     *
+     * @param offset offset of the range in the decompressed file.
+     * @param length length of the range.
+     * @param dst    destination buffer.
+     * @return number of bytes written.
+     * @throws java.nio.BufferOverflowException if the buffer has not enough space remaining for the range.
+     */
+    public int extractRange(long offset, int length, ByteBuffer dst) throws IOException {
+        return sectorReader.readRange(offset, length, dst);
     }
 }
@@ -0,0 +1,34 @@
+package systems.crigges.jmpq3;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * MPQ user data found in front of an archive. Some games, such as StarCraft II
+ * replays, store their own header here. It is located by a user data header
+ * which also redirects to the archive header.
+ *
+ * @param position     file position of the user data header.
+ * @param maxSize      maximum size of the user data.
+ * @param headerOffset offset of the archive header from the user data header.
+ * @param data         user data.
+ */
+@Immutable
+public record MpqUserData(long position, int maxSize, long headerOffset, byte[] data) {
+
+    /**
+     * Size of the user data header preceding the user data.
+     */
+    public static final int HEADER_SIZE = 16;
+
+    public MpqUserData {
+        data = data.clone();
+    }
+
+    /**
+     * Get a copy of the user data.
+     */
+    @Override
+    public byte[] data() {
+        return data.clone();
+    }
+}
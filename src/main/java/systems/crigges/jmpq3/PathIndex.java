@@ -0,0 +1,467 @@
+package systems.crigges.jmpq3;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Directory tree of file path names, used to list folders of an archive.
+ * <p>
+ * MPQ archives do not store directories, so the tree is derived from file
+ * path names such as those of a list file or an {@link ArchiveDirectory}.
+ * Both '\' and '/' are treated as separators and names are compared ignoring
+ * case. Each directory name is stored once in the tree regardless of how many
+ * files it contains, and children are kept in sorted arrays so lookups are
+ * binary searches.
+ * <p>
+ * Prefix and glob queries only visit the branches of the tree that can
+ * match, so their cost is mostly proportional to the number of results.
+ * Results are returned as the file path names the index was built from,
+ * ordered by name ignoring case with the files of a directory before those of
+ * its subdirectories.
+ */
+@Immutable
+public class PathIndex {
+
+    private static final Pattern SEPARATORS = Pattern.compile("[\\\\/]+");
+
+    private static final Node[] NO_DIRECTORIES = new Node[0];
+
+    private static final String[] NO_FILES = new String[0];
+
+    /**
+     * A directory. Subdirectories are ordered by name and files by their
+     * name without path, both ignoring case.
+     */
+    private record Node(String name, Node[] directories, String[] files) {
+    }
+
+    private final Node root;
+    private final int size;
+
+    private PathIndex(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Build an index of the specified file path names. Names which only differ
+     * in case or separators are indexed once.
+     *
+     * @param files file path names.
+     * @return new index.
+     */
+    public static PathIndex of(Collection<String> files) {
+        final Builder root = new Builder("");
+        int size = 0;
+        for (String file : files) {
+            final String[] names = SEPARATORS.split(file.startsWith("\\") || file.startsWith("/") ? file.substring(1) : file);
+            if (names.length == 0 || names[names.length - 1].isEmpty())
+                continue;
+
+            Builder directory = root;
+            for (int i = 0; i < names.length - 1; i++) {
+                final String name = names[i];
+                directory = directory.directories.computeIfAbsent(name, key -> new Builder(name));
+            }
+            if (directory.files.putIfAbsent(names[names.length - 1], file) == null)
+                size++;
+        }
+        return new PathIndex(root.build(), size);
+    }
+
+    /**
+     * Build an index of the names of a list file.
+     *
+     * @param listfile list file.
+     * @return new index.
+     */
+    public static PathIndex of(Listfile listfile) {
+        return of(listfile.getFiles());
+    }
+
+    /**
+     * Get the number of files in this index.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Check if the specified path is a directory. The root directory is
+     * named by the empty string.
+     */
+    public boolean isDirectory(String path) {
+        return findDirectory(path) != null;
+    }
+
+    /**
+     * Check if the specified path is a file in this index.
+     */
+    public boolean isFile(String path) {
+        final String[] names = split(path);
+        if (names.length == 0)
+            return false;
+
+        final Node directory = findDirectory(names, names.length - 1);
+        return directory != null && indexOfFile(directory.files, names[names.length - 1]) >= 0;
+    }
+
+    /**
+     * Get the names, without path, of the subdirectories and files in the
+     * specified directory.
+     *
+     * @param directory directory path.
+     * @return subdirectory names followed by file names, or null if the path
+     *         is not a directory.
+     */
+    public List<String> list(String directory) {
+        final Node node = findDirectory(directory);
+        if (node == null)
+            return null;
+
+        final List<String> result = new ArrayList<>(node.directories.length + node.files.length);
+        for (Node child : node.directories)
+            result.add(child.name);
+        for (String file : node.files)
+            result.add(file.substring(leafStart(file)));
+        return result;
+    }
+
+    /**
+     * Get the file path names of the files directly in the specified
+     * directory.
+     *
+     * @param directory directory path.
+     * @return file path names, empty if the path is not a directory.
+     */
+    public List<String> listFiles(String directory) {
+        final Node node = findDirectory(directory);
+        return node == null ? Collections.emptyList() : Collections.unmodifiableList(Arrays.asList(node.files));
+    }
+
+    /**
+     * Get all file path names starting with the specified prefix, ignoring
+     * case. For example "Interface\Icons\" finds all files in that directory
+     * and its subdirectories, "Interface\Icons\INV_" also finds all files and
+     * subdirectories whose name starts with "INV_".
+     *
+     * @param prefix path prefix.
+     * @return matching file path names.
+     */
+    public List<String> findByPrefix(String prefix) {
+        final boolean endsWithSeparator = prefix.endsWith("\\") || prefix.endsWith("/");
+        final String[] names = split(prefix);
+        final int directoryCount = endsWithSeparator ? names.length : Math.max(0, names.length - 1);
+        final String partial = endsWithSeparator || names.length == 0 ? "" : names[names.length - 1];
+
+        final Node directory = findDirectory(names, directoryCount);
+        final List<String> result = new ArrayList<>();
+        if (directory == null)
+            return result;
+
+        for (int i = lowerBoundFile(directory.files, partial); i < directory.files.length; i++) {
+            final String file = directory.files[i];
+            final int leaf = leafStart(file);
+            if (!file.regionMatches(true, leaf, partial, 0, partial.length()))
+                break;
+            result.add(file);
+        }
+        for (int i = lowerBound(directory.directories, partial); i < directory.directories.length; i++) {
+            final Node child = directory.directories[i];
+            if (!child.name.regionMatches(true, 0, partial, 0, partial.length()))
+                break;
+            addAll(child, result);
+        }
+        return result;
+    }
+
+    /**
+     * Get all file path names matching the specified glob pattern, ignoring
+     * case. Patterns use the syntax of {@link #compileGlob(String)} and are
+     * matched one path name at a time: a {@code **} name matches any number
+     * of directories. Unlike {@link #compileGlob(String)}, both '/' and '\'
+     * separate names, as in the other queries of this index, so characters
+     * cannot be escaped; use a character class such as {@code [*]} to match
+     * a wildcard literally. For example "World\Maps\Azeroth\*.adt" or
+     * "Interface/**&#47;*.blp". Each file is returned once, even if the
+     * pattern can match it in several ways.
+     *
+     * @param glob glob pattern.
+     * @return matching file path names.
+     * @throws IllegalArgumentException if the pattern is invalid, including
+     *         a '\' inside a character class or group.
+     */
+    public List<String> glob(String glob) {
+        final String[] names = splitGlob(glob);
+        final List<String> result = new ArrayList<>();
+        if (names.length == 0)
+            return result;
+
+        final List<Segment> segments = new ArrayList<>(names.length);
+        int recursive = 0;
+        for (String name : names) {
+            final Segment segment = new Segment(name);
+            // consecutive recursive names match the same directories
+            if (!segment.recursive || segments.isEmpty() || !segments.get(segments.size() - 1).recursive) {
+                segments.add(segment);
+                if (segment.recursive)
+                    recursive++;
+            }
+        }
+
+        // with several recursive names a directory can be reached at the same
+        // name of the pattern in more than one way
+        List<Set<Node>> visited = null;
+        if (recursive > 1) {
+            visited = new ArrayList<>(segments.size());
+            for (int i = 0; i < segments.size(); i++)
+                visited.add(Collections.newSetFromMap(new IdentityHashMap<>()));
+        }
+
+        glob(root, segments.toArray(new Segment[0]), 0, visited, result);
+        return result;
+    }
+
+    private static void glob(Node directory, Segment[] segments, int index, List<Set<Node>> visited, List<String> result) {
+        if (visited != null && !visited.get(index).add(directory))
+            return;
+
+        final Segment segment = segments[index];
+        if (segment.recursive) {
+            if (index == segments.length - 1) {
+                result.addAll(Arrays.asList(directory.files));
+            } else {
+                // zero directories, then any number of directories
+                glob(directory, segments, index + 1, visited, result);
+            }
+            for (Node child : directory.directories)
+                glob(child, segments, index, visited, result);
+            return;
+        }
+
+        if (index == segments.length - 1) {
+            for (int i = lowerBoundFile(directory.files, segment.prefix); i < directory.files.length; i++) {
+                final String file = directory.files[i];
+                final int leaf = leafStart(file);
+                if (!file.regionMatches(true, leaf, segment.prefix, 0, segment.prefix.length()))
+                    break;
+                if (segment.test(file.substring(leaf)))
+                    result.add(file);
+            }
+            return;
+        }
+
+        for (int i = lowerBound(directory.directories, segment.prefix); i < directory.directories.length; i++) {
+            final Node child = directory.directories[i];
+            if (!child.name.regionMatches(true, 0, segment.prefix, 0, segment.prefix.length()))
+                break;
+            if (segment.test(child.name))
+                glob(child, segments, index + 1, visited, result);
+        }
+    }
+
+    private static void addAll(Node directory, List<String> result) {
+        result.addAll(Arrays.asList(directory.files));
+        for (Node child : directory.directories)
+            addAll(child, result);
+    }
+
+    private Node findDirectory(String path) {
+        final String[] names = split(path);
+        return findDirectory(names, names.length);
+    }
+
+    private Node findDirectory(String[] names, int count) {
+        Node directory = root;
+        for (int i = 0; i < count && directory != null; i++) {
+            final int index = lowerBound(directory.directories, names[i]);
+            if (index < directory.directories.length && directory.directories[index].name.equalsIgnoreCase(names[i]))
+                directory = directory.directories[index];
+            else
+                directory = null;
+        }
+        return directory;
+    }
+
+    private static String[] split(String path) {
+        final String[] names = SEPARATORS.split(path);
+        if (names.length > 0 && names[0].isEmpty())
+            return Arrays.copyOfRange(names, 1, names.length);
+        return names;
+    }
+
+    /**
+     * Compile a glob pattern into a regular expression matching path names,
+     * ignoring case in the same way as the index. This is the syntax of
+     * {@link java.nio.file.FileSystem#getPathMatcher(String)}: {@code *}
+     * matches within a name, {@code **} matches across names, {@code ?}
+     * matches a single character, {@code [...]} matches a character class,
+     * {@code {a,b}} matches alternatives and {@code \} escapes the next
+     * character. A '/' matches both '/' and '\'.
+     *
+     * @param glob glob pattern.
+     * @return compiled pattern.
+     * @throws IllegalArgumentException if the pattern is invalid.
+     */
+    public static Pattern compileGlob(String glob) {
+        return Pattern.compile(Globs.toRegex(glob), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    }
+
+    /**
+     * Splits a glob pattern into names at each '/' or '\' which is not part
+     * of a character class or group.
+     */
+    private static String[] splitGlob(String glob) {
+        final List<String> names = new ArrayList<>();
+        int start = 0;
+        int depth = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            switch (glob.charAt(i)) {
+                case '[', '{' -> depth++;
+                case ']', '}' -> depth = Math.max(0, depth - 1);
+                case '/', '\\' -> {
+                    if (depth > 0 && glob.charAt(i) == '\\')
+                        throw new IllegalArgumentException("Separator inside a class or group <" + glob + ">.");
+                    if (depth == 0) {
+                        if (i > start)
+                            names.add(glob.substring(start, i));
+                        start = i + 1;
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+        if (start < glob.length())
+            names.add(glob.substring(start));
+        return names.toArray(new String[0]);
+    }
+
+    private static int leafStart(String file) {
+        return Math.max(file.lastIndexOf('\\'), file.lastIndexOf('/')) + 1;
+    }
+
+    /**
+     * Compares the name without path of a file with a name, ignoring case in
+     * the same way as {@link String#CASE_INSENSITIVE_ORDER}.
+     */
+    private static int compareLeaf(String file, String name) {
+        final int leaf = leafStart(file);
+        final int length1 = file.length() - leaf;
+        final int length2 = name.length();
+        final int length = Math.min(length1, length2);
+        for (int i = 0; i < length; i++) {
+            char c1 = file.charAt(leaf + i);
+            char c2 = name.charAt(i);
+            if (c1 != c2) {
+                c1 = Character.toUpperCase(c1);
+                c2 = Character.toUpperCase(c2);
+                if (c1 != c2) {
+                    c1 = Character.toLowerCase(c1);
+                    c2 = Character.toLowerCase(c2);
+                    if (c1 != c2)
+                        return c1 - c2;
+                }
+            }
+        }
+        return length1 - length2;
+    }
+
+    private static int indexOfFile(String[] files, String name) {
+        final int index = lowerBoundFile(files, name);
+        return index < files.length && compareLeaf(files[index], name) == 0 ? index : -1;
+    }
+
+    /**
+     * Index of the first directory whose name is not less than the key.
+     */
+    private static int lowerBound(Node[] directories, String key) {
+        int low = 0;
+        int high = directories.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (String.CASE_INSENSITIVE_ORDER.compare(directories[mid].name, key) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Index of the first file whose name without path is not less than the
+     * key.
+     */
+    private static int lowerBoundFile(String[] files, String key) {
+        int low = 0;
+        int high = files.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (compareLeaf(files[mid], key) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * A single name of a glob pattern.
+     */
+    private static final class Segment implements Predicate<String> {
+
+        /**
+         * Literal characters before the first wildcard.
+         */
+        final String prefix;
+        final Pattern pattern;
+        final boolean recursive;
+
+        Segment(String glob) {
+            int wildcard = 0;
+            while (wildcard < glob.length() && "*?[{".indexOf(glob.charAt(wildcard)) < 0)
+                wildcard++;
+
+            this.prefix = glob.substring(0, wildcard);
+            this.pattern = wildcard == glob.length() ? null : compileGlob(glob);
+            this.recursive = glob.equals("**");
+        }
+
+        @Override
+        public boolean test(String name) {
+            return pattern == null ? name.equalsIgnoreCase(prefix) : pattern.matcher(name).matches();
+        }
+    }
+
+    /**
+     * Mutable directory used while building the index.
+     */
+    private static final class Builder {
+
+        final String name;
+        final Map<String, Builder> directories = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        final Map<String, String> files = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+        Builder(String name) {
+            this.name = name;
+        }
+
+        Node build() {
+            final Node[] children = directories.isEmpty() ? NO_DIRECTORIES : new Node[directories.size()];
+            int i = 0;
+            for (Builder child : directories.values())
+                children[i++] = child.build();
+            return new Node(name, children, files.isEmpty() ? NO_FILES : files.values().toArray(new String[0]));
+        }
+    }
+}
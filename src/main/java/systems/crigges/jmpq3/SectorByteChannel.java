@@ -0,0 +1,125 @@
+package systems.crigges.jmpq3;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read only seekable channel over the decoded data of a file.
+ * <p>
+ * Reads are served from decoded sectors. The most recently used sectors are
+ * kept in a small cache, so seeking back and forth within the same region of
+ * the file does not decode the same sectors again.
+ * <p>
+ * Closing the channel does not close the archive it reads from.
+ */
+@ThreadSafe
+class SectorByteChannel implements SeekableByteChannel {
+
+    /**
+     * Maximum number of decoded sectors to keep.
+     */
+    private static final int CACHED_SECTORS = 8;
+
+    private final SectorReader sectorReader;
+
+    /**
+     * Decoded sectors by index, in least recently used order.
+     */
+    private final Map<Integer, byte[]> sectorCache = new LinkedHashMap<>(CACHED_SECTORS * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+            return size() > CACHED_SECTORS;
+        }
+    };
+
+    private long position;
+    private boolean open = true;
+
+    SectorByteChannel(SectorReader sectorReader) {
+        this.sectorReader = sectorReader;
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open)
+            throw new ClosedChannelException();
+    }
+
+    private byte[] getSector(int sector) throws IOException {
+        byte[] data = sectorCache.get(sector);
+        if (data == null) {
+            data = sectorReader.readSector(sector);
+            sectorCache.put(sector, data);
+        }
+        return data;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        final long size = sectorReader.size();
+        if (position >= size)
+            return -1;
+
+        final int sectorSize = sectorReader.getSectorSize();
+        int total = 0;
+        while (dst.hasRemaining() && position < size) {
+            final int sector = (int) (position / sectorSize);
+            final int offset = (int) (position - (long) sector * sectorSize);
+            final byte[] data = getSector(sector);
+
+            final int count = Math.min(dst.remaining(), data.length - offset);
+            dst.put(data, offset, count);
+            position += count;
+            total += count;
+        }
+        return total;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0)
+            throw new IllegalArgumentException("Negative position <" + newPosition + ">.");
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public synchronized long size() throws IOException {
+        ensureOpen();
+        return sectorReader.size();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+        sectorCache.clear();
+    }
+}
@@ -0,0 +1,121 @@
+package systems.crigges.jmpq3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+
+/**
+ * Input stream over the decoded data of a file. Sectors are read, decrypted
+ * and decompressed on demand, so at most one decoded sector is held at a time.
+ * <p>
+ * Closing the stream does not close the archive it reads from.
+ */
+class SectorInputStream extends InputStream {
+
+    private final SectorReader sectorReader;
+
+    /**
+     * Index of the next sector to decode.
+     */
+    private int nextSector;
+
+    /**
+     * The current decoded sector.
+     */
+    private byte[] sector = new byte[0];
+    private int sectorPos;
+
+    /**
+     * Number of bytes to skip at the start of the next decoded sector.
+     */
+    private long pendingSkip;
+
+    private boolean closed;
+
+    SectorInputStream(SectorReader sectorReader) {
+        this.sectorReader = sectorReader;
+    }
+
+    /**
+     * Makes sure the current sector has data remaining.
+     *
+     * @return false if the end of the file has been reached.
+     */
+    private boolean fill() throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+
+        while (sectorPos >= sector.length) {
+            if (nextSector >= sectorReader.getSectorCount())
+                return false;
+
+            sector = sectorReader.readSector(nextSector++);
+            sectorPos = (int) Math.min(pendingSkip, sector.length);
+            pendingSkip -= sectorPos;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill())
+            return -1;
+        return sector[sectorPos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (len == 0)
+            return 0;
+
+        int total = 0;
+        while (total < len && fill()) {
+            final int count = Math.min(len - total, sector.length - sectorPos);
+            System.arraycopy(sector, sectorPos, b, off + total, count);
+            sectorPos += count;
+            total += count;
+        }
+        return total == 0 ? -1 : total;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+        if (n <= 0)
+            return 0;
+
+        // skip within the current sector
+        long skipped = Math.min(n, sector.length - sectorPos);
+        sectorPos += (int) skipped;
+
+        // skip whole sectors without decoding them
+        while (nextSector < sectorReader.getSectorCount()) {
+            final long sectorRemaining = sectorReader.getSectorSize(nextSector) - pendingSkip;
+            if (n - skipped < sectorRemaining) {
+                // skip into the next sector once it is decoded
+                pendingSkip += n - skipped;
+                skipped = n;
+                break;
+            }
+            skipped += sectorRemaining;
+            pendingSkip = 0;
+            nextSector++;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+        return sector.length - sectorPos;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        sector = new byte[0];
+    }
+}
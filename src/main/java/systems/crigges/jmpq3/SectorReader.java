@@ -0,0 +1,419 @@
+package systems.crigges.jmpq3;
+
+import systems.crigges.jmpq3.compression.CompressionUtil;
+import systems.crigges.jmpq3.compression.ExtractionContext;
+import systems.crigges.jmpq3.compression.SectorCodec;
+import systems.crigges.jmpq3.compression.SectorCodecs;
+import systems.crigges.jmpq3.security.MPQEncryption;
+import systems.crigges.jmpq3.security.MPQHashGenerator;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import static systems.crigges.jmpq3.Block.*;
+
+/**
+ * Decodes the data of a single file one sector at a time.
+ * <p>
+ * Files that are split into sectors store each sector independently
+ * compressed and encrypted, with a sector offset table in front of the data
+ * that locates the compressed sectors. Single unit files and uncompressed
+ * files have no sector offset table. Single unit files are treated as one
+ * sector covering the whole file.
+ * <p>
+ * Only the data of the sectors that are decoded is read from the
+ * {@link BlockSource}, so heap use is bounded by the sector size.
+ */
+@ThreadSafe
+final class SectorReader {
+
+    /**
+     * Source of the raw, possibly encrypted and compressed, file data.
+     */
+    @FunctionalInterface
+    interface BlockSource {
+        /**
+         * Reads raw file data into the destination buffer.
+         *
+         * @param offset offset from the start of the file data.
+         * @param dst    destination buffer, filled from position 0 to its limit.
+         *               The position is left unchanged.
+         * @throws IOException if the data could not be read.
+         */
+        void read(int offset, ByteBuffer dst) throws IOException;
+
+        /**
+         * Get a view of raw file data held in memory, without copying it.
+         *
+         * @param offset offset from the start of the file data.
+         * @param length length of the data.
+         * @return view of the data, or null if the data must be read.
+         */
+        default ByteBuffer view(int offset, int length) {
+            return null;
+        }
+
+        /**
+         * Create a source reading from a buffer holding the file data. Reads
+         * past the end of the buffer are padded with zeros.
+         *
+         * @param buffer file data.
+         * @return new source.
+         */
+        static BlockSource of(ByteBuffer buffer) {
+            return new BlockSource() {
+                @Override
+                public void read(int offset, ByteBuffer dst) throws IOException {
+                    if (offset > buffer.limit())
+                        throw new JMpqException("Sector offset out of bounds <" + offset + ">.");
+                    final int length = Math.min(dst.limit(), buffer.limit() - offset);
+                    dst.put(0, buffer, offset, length);
+                    for (int i = length; i < dst.limit(); i++)
+                        dst.put(i, (byte) 0);
+                }
+
+                @Override
+                public ByteBuffer view(int offset, int length) {
+                    if (offset < 0 || length < 0 || offset > buffer.limit() - length)
+                        return null;
+                    return buffer.slice(offset, length);
+                }
+            };
+        }
+
+        /**
+         * Create a source reading from a file channel.
+         *
+         * @param fileChannel channel to read from.
+         * @param position    file position of the file data.
+         * @return new source.
+         */
+        static BlockSource of(FileChannel fileChannel, long position) {
+            return (offset, dst) -> {
+                Util.readFully(dst, fileChannel, position + offset);
+                dst.rewind();
+            };
+        }
+    }
+
+    private final BlockSource source;
+    private final Block block;
+    private final int sectorSize;
+    private final int sectorCount;
+    private final int archiveVersion;
+    private final boolean isEncrypted;
+    private final boolean hasSectorTable;
+    private final int baseKey;
+
+    /**
+     * Sector offset table, loaded on first use.
+     */
+    private volatile int[] sectorOffsets;
+
+    SectorReader(BlockSource source, Block block, int sectorSize, String name, int archiveVersion) {
+        this(source, block, sectorSize, name, archiveVersion, null);
+    }
+
+    /**
+     * @param sectorOffsets decrypted sector offset table if already known,
+     *                      otherwise null to read it on first use.
+     */
+    SectorReader(BlockSource source, Block block, int sectorSize, String name, int archiveVersion, int[] sectorOffsets) {
+        this.source = source;
+        this.sectorOffsets = sectorOffsets;
+        this.block = block;
+        this.sectorSize = sectorSize;
+        this.archiveVersion = archiveVersion;
+        this.isEncrypted = block.hasFlag(ENCRYPTED);
+        this.hasSectorTable = block.hasFlag(IMPLODED) || (block.hasFlag(COMPRESSED) && !block.hasFlag(SINGLE_UNIT));
+        this.baseKey = isEncrypted ? calculateBaseKey(name, block) : 0;
+
+        if (block.normalSize() == 0) {
+            this.sectorCount = 0;
+        } else if (block.hasFlag(SINGLE_UNIT) && !block.hasFlag(IMPLODED)) {
+            this.sectorCount = 1;
+        } else {
+            this.sectorCount = (int) ((block.normalSize() + (long) sectorSize - 1) / sectorSize);
+        }
+    }
+
+    /**
+     * Calculates the encryption key of a file. The key is derived from the
+     * file name without path.
+     */
+    private static int calculateBaseKey(String name, Block block) {
+        int sepIndex = name.lastIndexOf('\\');
+        String pathlessName = name.substring(sepIndex + 1);
+
+        final int key = MPQHashGenerator.generateFileKey(pathlessName);
+        if (block.hasFlag(ADJUSTED_ENCRYPTED))
+            return (key + block.getFilePos()) ^ block.normalSize();
+        return key;
+    }
+
+    /**
+     * Get the decoded size of the file.
+     */
+    long size() {
+        return block.normalSize();
+    }
+
+    /**
+     * Get the number of sectors of the file.
+     */
+    int getSectorCount() {
+        return sectorCount;
+    }
+
+    /**
+     * Get the decoded size of a regular sector. Only the last sector may be
+     * smaller.
+     */
+    int getSectorSize() {
+        return sectorCount == 1 ? block.normalSize() : sectorSize;
+    }
+
+    /**
+     * Get the decoded size of the specified sector.
+     */
+    int getSectorSize(int sector) {
+        final int regular = getSectorSize();
+        return (int) Math.min(regular, size() - (long) sector * regular);
+    }
+
+    /**
+     * Check if the file data starts with a sector offset table.
+     */
+    boolean hasSectorTable() {
+        return hasSectorTable && sectorCount > 0;
+    }
+
+    /**
+     * Get the decrypted sector offset table, reading it on first use.
+     */
+    int[] getSectorOffsets() throws IOException {
+        int[] offsets = sectorOffsets;
+        if (offsets == null) {
+            final ByteBuffer sot = ByteBuffer.allocate((sectorCount + 1) * 4);
+            source.read(0, sot);
+            if (isEncrypted) {
+                new MPQEncryption(baseKey - 1, true).processSingle(sot);
+            }
+            sot.order(ByteOrder.LITTLE_ENDIAN);
+
+            offsets = new int[sectorCount + 1];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = sot.getInt(i * 4);
+            }
+            sectorOffsets = offsets;
+        }
+        return offsets;
+    }
+
+    /**
+     * Get the offset of a sector in the raw file data. The offset of the
+     * sector past the last one is the end of the data.
+     */
+    private int sectorOffset(int sector) throws IOException {
+        if (hasSectorTable)
+            return getSectorOffsets()[sector];
+        if (sectorCount == 1)
+            return sector == 0 ? 0 : block.compressedSize();
+        return (int) Math.min((long) sector * sectorSize, block.normalSize());
+    }
+
+    /**
+     * Reads, decrypts and decompresses the specified sector.
+     *
+     * @param sector sector index.
+     * @return decoded sector data.
+     * @throws IOException if the sector could not be read or decoded.
+     */
+    byte[] readSector(int sector) throws IOException {
+        if (sector < 0 || sector >= sectorCount)
+            throw new JMpqException("Invalid sector <" + sector + ">.");
+
+        final byte[] data = new byte[getSectorSize(sector)];
+        readSector(sector, ByteBuffer.wrap(data));
+        return data;
+    }
+
+    /**
+     * Reads, decrypts and decompresses the specified sector into the
+     * destination buffer.
+     * <p>
+     * Sectors that are stored without compression are read and decrypted
+     * directly in the destination buffer. Compressed sectors are decompressed
+     * straight from the source if it holds them in memory and they are not
+     * encrypted, otherwise they are copied to the scratch space of the
+     * current thread first and decrypted there. Heap
+     * destination buffers are decompressed into directly.
+     * <p>
+     * Sectors compressed with deflate alone are inflated between direct
+     * buffers, such as a memory mapped archive and a direct destination
+     * buffer, without copying them to heap arrays.
+     *
+     * @param sector sector index.
+     * @param dst    destination buffer, its position is advanced by the size
+     *               of the sector.
+     * @throws IOException if the sector could not be read or decoded.
+     * @throws BufferOverflowException if the buffer has not enough space
+     *                                 remaining for the sector.
+     */
+    void readSector(int sector, ByteBuffer dst) throws IOException {
+        readSector(sector, dst, ExtractionContext.current());
+    }
+
+    /**
+     * Reads, decrypts and decompresses the specified sector into the
+     * destination buffer, see {@link #readSector(int, ByteBuffer)}, using the
+     * codecs of the given context.
+     */
+    void readSector(int sector, ByteBuffer dst, ExtractionContext context) throws IOException {
+        if (sector < 0 || sector >= sectorCount)
+            throw new JMpqException("Invalid sector <" + sector + ">.");
+
+        final SectorScratch scratch = SectorScratch.current();
+
+        final int uncompressedSize = getSectorSize(sector);
+        if (dst.remaining() < uncompressedSize)
+            throw new BufferOverflowException();
+
+        final int start = sectorOffset(sector);
+        final int length = sectorOffset(sector + 1) - start;
+        if (length == uncompressedSize) {
+            // stored as is, possibly encrypted
+            final ByteBuffer data = dst.slice(dst.position(), uncompressedSize);
+            source.read(start, data);
+            if (isEncrypted) {
+                scratch.decryption().changeKey(baseKey + sector, true);
+                if (data.hasArray())
+                    scratch.decryption().processSingle(data.array(), data.arrayOffset(), uncompressedSize);
+                else
+                    scratch.decryption().processSingle(data);
+            }
+            dst.position(dst.position() + uncompressedSize);
+            return;
+        }
+
+        ByteBuffer input = isEncrypted ? null : source.view(start, length);
+        if (input == null) {
+            final byte[] data = scratch.inputBuffer(length);
+            source.read(start, ByteBuffer.wrap(data, 0, length));
+            if (isEncrypted) {
+                scratch.decryption().changeKey(baseKey + sector, true);
+                scratch.decryption().processSingle(data, 0, length);
+            }
+            input = ByteBuffer.wrap(data, 0, length);
+        }
+
+        if (!block.hasFlag(IMPLODED) && block.hasFlag(COMPRESSED) && length > 0 && !(input.hasArray() && dst.hasArray())) {
+            // decode between the buffers, one of them is not backed by an array
+            final SectorCodec codec = SectorCodecs.get(input.get(0));
+            if (codec != null) {
+                codec.decompress(input.slice(1, length - 1), dst.slice(dst.position(), uncompressedSize), context);
+                dst.position(dst.position() + uncompressedSize);
+                return;
+            }
+            if (CompressionUtil.isDeflateOnly(input.get(0))) {
+                CompressionUtil.inflate(input.slice(1, length - 1), dst.slice(dst.position(), uncompressedSize), context);
+                dst.position(dst.position() + uncompressedSize);
+                return;
+            }
+        }
+
+        if (!input.hasArray()) {
+            final byte[] data = scratch.inputBuffer(length);
+            input.get(0, data, 0, length);
+            input = ByteBuffer.wrap(data, 0, length);
+        }
+        final byte[] in = input.array();
+        final int inOff = input.arrayOffset();
+
+        final boolean inPlace = dst.hasArray();
+        final byte[] out = inPlace ? dst.array() : scratch.outputBuffer(uncompressedSize);
+        final int outOff = inPlace ? dst.arrayOffset() + dst.position() : 0;
+
+        if (block.hasFlag(IMPLODED)) {
+            CompressionUtil.explode(in, inOff, length, out, outOff, uncompressedSize);
+        } else if (block.hasFlag(COMPRESSED)) {
+            if (archiveVersion >= 1)
+                CompressionUtil.decompressVersion2(in, inOff, length, out, outOff, uncompressedSize, context);
+            else
+                CompressionUtil.decompress(in, inOff, length, out, outOff, uncompressedSize, context);
+        } else {
+            System.arraycopy(in, inOff, out, outOff, Math.min(length, uncompressedSize));
+        }
+
+        if (inPlace)
+            dst.position(dst.position() + uncompressedSize);
+        else
+            dst.put(out, 0, uncompressedSize);
+    }
+
+    /**
+     * Decodes a range of the file into the destination buffer. Only the
+     * sectors overlapping the range are read and decoded. Uncompressed data
+     * is read directly, only decrypting up to the end of the range.
+     * <p>
+     * The range is truncated at the end of the file.
+     *
+     * @param offset offset of the range in the decoded file.
+     * @param length length of the range.
+     * @param dst    destination buffer.
+     * @return number of bytes written to the destination buffer.
+     * @throws IOException if a sector could not be read or decoded.
+     */
+    int readRange(long offset, int length, ByteBuffer dst) throws IOException {
+        if (offset < 0 || length < 0)
+            throw new IllegalArgumentException("Invalid range <" + offset + ", " + length + ">.");
+
+        final int count = (int) Math.max(0, Math.min(length, size() - offset));
+        if (dst.remaining() < count)
+            throw new BufferOverflowException();
+        if (count == 0)
+            return 0;
+
+        final long end = offset + count;
+        final int regular = getSectorSize();
+        final int first = (int) (offset / regular);
+        final int last = (int) ((end - 1) / regular);
+
+        if (!block.hasFlag(COMPRESSED) && !block.hasFlag(IMPLODED) && !isEncrypted) {
+            // stored as is
+            source.read((int) offset, dst.slice(dst.position(), count));
+            dst.position(dst.position() + count);
+            return count;
+        }
+
+        for (int i = first; i <= last; i++) {
+            final long sectorStart = (long) i * regular;
+            final int from = (int) Math.max(0, offset - sectorStart);
+            final int to = (int) Math.min(getSectorSize(i), end - sectorStart);
+
+            final ExtractionContext context = ExtractionContext.current();
+            final SectorScratch scratch = SectorScratch.current();
+            if (!block.hasFlag(COMPRESSED) && !block.hasFlag(IMPLODED)) {
+                // encrypted, decrypt up to the first whole block past the range
+                final int size = Math.min(getSectorSize(i), (to + 3) & -4);
+                final byte[] data = scratch.inputBuffer(size);
+                source.read((int) sectorStart, ByteBuffer.wrap(data, 0, size));
+                scratch.decryption().changeKey(baseKey + i, true);
+                scratch.decryption().processSingle(data, 0, size);
+                dst.put(data, from, to - from);
+            } else if (from == 0 && to == getSectorSize(i)) {
+                readSector(i, dst, context);
+            } else {
+                // partial sector, decode to scratch space first
+                final byte[] data = scratch.outputBuffer(getSectorSize(i));
+                readSector(i, ByteBuffer.wrap(data, 0, getSectorSize(i)), context);
+                dst.put(data, from, to - from);
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,75 @@
+package systems.crigges.jmpq3;
+
+import systems.crigges.jmpq3.compression.ExtractionContext;
+import systems.crigges.jmpq3.security.MPQEncryption;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Scratch space of the sector reads of one thread.
+ * <p>
+ * Raw sectors are read and decrypted here before they are decompressed, and
+ * decompressed here if the destination buffer has no array. The codecs
+ * themselves are held by an {@link ExtractionContext}.
+ */
+@NotThreadSafe
+final class SectorScratch {
+
+    /**
+     * Largest scratch array kept for reuse. Larger sectors, such as single
+     * unit files, get a temporary array.
+     */
+    private static final int MAX_SCRATCH_SIZE = 0x100000;
+
+    private static final ThreadLocal<SectorScratch> CURRENT = ThreadLocal.withInitial(SectorScratch::new);
+
+    private final MPQEncryption decryption = new MPQEncryption(0, true);
+
+    private byte[] input = new byte[0];
+    private byte[] output = new byte[0];
+
+    private SectorScratch() {
+    }
+
+    /**
+     * Get the scratch space of the current thread.
+     */
+    static SectorScratch current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Get the decryption of sector data, to be rekeyed before use.
+     */
+    MPQEncryption decryption() {
+        return decryption;
+    }
+
+    /**
+     * Get scratch space for raw sector data. The content is undefined and
+     * only valid until the next call.
+     *
+     * @param size minimum size.
+     */
+    byte[] inputBuffer(int size) {
+        if (size > MAX_SCRATCH_SIZE)
+            return new byte[size];
+        if (input.length < size)
+            input = new byte[size];
+        return input;
+    }
+
+    /**
+     * Get scratch space for decoded sector data. The content is undefined
+     * and only valid until the next call.
+     *
+     * @param size minimum size.
+     */
+    byte[] outputBuffer(int size) {
+        if (size > MAX_SCRATCH_SIZE)
+            return new byte[size];
+        if (output.length < size)
+            output = new byte[size];
+        return output;
+    }
+}
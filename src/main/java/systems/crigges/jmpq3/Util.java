@@ -29,14 +29,7 @@ public class Util {
     }
 
     public static long calculateFileKey(String name) {
-        // generate file key
-        final MPQHashGenerator key1Gen = MPQHashGenerator.getTableKey1Generator();
-        key1Gen.process(name);
-        final int key1 = key1Gen.getHash();
-        final MPQHashGenerator key2Gen = MPQHashGenerator.getTableKey2Generator();
-        key2Gen.process(name);
-        final int key2 = key2Gen.getHash();
-        return ((long) key2 << 32) | Integer.toUnsignedLong(key1);
+        return MPQHashGenerator.hashFileName(name).key();
     }
 
     private Util() {
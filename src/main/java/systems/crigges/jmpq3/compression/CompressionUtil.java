@@ -7,8 +7,8 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
 
 /**
  * Created by Frotty on 30.04.2017.
@@ -31,84 +31,201 @@ public class CompressionUtil {
             return sector;
         }
 
-        byte compressionType = sector[0];
-        byte[] outByteArray = new byte[uncompressedSize];
-        ByteBuffer out = ByteBuffer.wrap(outByteArray);
-        ByteBuffer in = ByteBuffer.wrap(sector, 1, sector.length - 1);
+        byte[] out = new byte[uncompressedSize];
+        decompress(sector, 0, sector.length, out, 0, uncompressedSize);
+        return out;
+    }
+
+    /**
+     * Decompresses a sector of a version 0 archive, which may combine several compression types, from a range of the
+     * input array into a range of the output array. Intermediate data of combined compression types is kept in the
+     * scratch space of the context of the current thread. Compression types with a registered {@link SectorCodec} are
+     * decoded by the codec.
+     *
+     * @param in        sector data starting with the compression type.
+     * @param off       offset of the sector data.
+     * @param len       length of the sector data.
+     * @param out       destination array.
+     * @param outOff    offset to write the decompressed sector at.
+     * @param outLen    size of the decompressed sector.
+     */
+    public static void decompress(byte[] in, int off, int len, byte[] out, int outOff, int outLen) throws IOException {
+        decompress(in, off, len, out, outOff, outLen, ExtractionContext.current());
+    }
 
-        boolean flip = false;
+    /**
+     * Decompresses a sector of a version 0 archive, see
+     * {@link CompressionUtil#decompress(byte[], int, int, byte[], int, int)}, using the codecs and scratch space of the
+     * given context.
+     */
+    public static void decompress(byte[] in, int off, int len, byte[] out, int outOff, int outLen, ExtractionContext context) throws IOException {
+        if (len == outLen) {
+            System.arraycopy(in, off, out, outOff, len);
+            return;
+        }
+
+        byte compressionType = in[off];
+        SectorCodec codec = SectorCodecs.get(compressionType);
+        if (codec != null) {
+            codec.decompress(in, off + 1, len - 1, out, outOff, outLen, context);
+            return;
+        }
+
+        boolean huffman = (compressionType & FLAG_HUFFMAN) != 0;
+        boolean adpcm = (compressionType & FLAG_ADPCM2C) != 0 || (compressionType & FLAG_ADPCM1C) != 0;
+
+        // the data of the current stage
+        byte[] data = in;
+        int dataOff = off + 1;
+        int dataLen = len - 1;
 
         if ((compressionType & FLAG_DEFLATE) != 0) {
-            inflate(sector, outByteArray);
-            flip = true;
+            byte[] target = huffman || adpcm ? context.stageBuffer(0, outLen) : out;
+            int targetOff = target == out ? outOff : 0;
+            dataLen = inflate(in, off + 1, len - 1, target, targetOff, outLen, context);
+            data = target;
+            dataOff = targetOff;
         } else if ((compressionType & FLAG_LZMA) != 0) {
             throw new JMpqException("Unsupported compression LZMA");
         } else if ((compressionType & FLAG_BZIP2) != 0) {
             throw new JMpqException("Unsupported compression Bzip2");
         } else if ((compressionType & FLAG_IMPLODE) != 0) {
-            Exploder.pkexplode(sector, outByteArray, 1);
-            flip = true;
+            byte[] target = huffman || adpcm ? context.stageBuffer(0, outLen) : out;
+            int targetOff = target == out ? outOff : 0;
+            Exploder.pkexplode(in, off + 1, len - 1, target, targetOff, outLen);
+            data = target;
+            dataOff = targetOff;
+            dataLen = outLen;
         }
 
         if ((compressionType & FLAG_SPARSE) != 0) {
             throw new JMpqException("Unsupported compression sparse");
         }
 
-        if ((compressionType & FLAG_HUFFMAN) != 0) {
-            (flip ? in : out).clear();
+        if (huffman) {
+            byte[] target = adpcm ? context.stageBuffer(1, outLen) : out;
+            int targetOff = target == out ? outOff : 0;
+            ByteBuffer source = ByteBuffer.wrap(data, dataOff, dataLen);
+            ByteBuffer dest = ByteBuffer.wrap(target, targetOff, outLen);
 
-            Huffman huffman = new Huffman();
-            huffman.decompress(flip ? out : in, flip ? in : out);
+            context.huffman().decompress(source, dest);
 
-            out.limit(out.position());
-            in.position(0);
-            out.position(0);
-            flip = !flip;
+            data = target;
+            dataOff = targetOff;
+            dataLen = dest.position() - targetOff;
         }
 
-        if ((compressionType & FLAG_ADPCM2C) != 0 || (compressionType & FLAG_ADPCM1C) != 0) {
+        if (adpcm) {
             int numChannels = (compressionType & FLAG_ADPCM2C) != 0 ? 2 : 1;
-            ADPCM adpcm = new ADPCM(numChannels);
-
-            ByteBuffer newOut = ByteBuffer.wrap(new byte[uncompressedSize]);
-            adpcm.decompress(flip ? out : in, newOut, numChannels);
-
-            (flip ? out : in).position(0);
-            return newOut.array();
+            context.adpcm().decompress(ByteBuffer.wrap(data, dataOff, dataLen), ByteBuffer.wrap(out, outOff, outLen), numChannels);
+        } else if (data != out) {
+            System.arraycopy(data, dataOff, out, outOff, Math.min(dataLen, outLen));
         }
-
-        return (flip ? out : in).array();
     }
 
 	public static byte[] decompressVersion2(byte[] sector, int compressedSize, int uncompressedSize) throws IOException {
 		if (compressedSize == uncompressedSize)
 			return sector;
 
-		int compressionType = sector[0];
 		byte[] out = new byte[uncompressedSize];
+		decompressVersion2(sector, 0, sector.length, out, 0, uncompressedSize);
+		return out;
+	}
+
+	/**
+	 * Decompresses a sector of a version 1 or later archive from a range of the input array into a range of the output
+	 * array. Compression types with a registered {@link SectorCodec} are decoded by the codec.
+	 *
+	 * @param in     sector data starting with the compression type.
+	 * @param off    offset of the sector data.
+	 * @param len    length of the sector data.
+	 * @param out    destination array.
+	 * @param outOff offset to write the decompressed sector at.
+	 * @param outLen size of the decompressed sector.
+	 */
+	public static void decompressVersion2(byte[] in, int off, int len, byte[] out, int outOff, int outLen) throws IOException {
+		decompressVersion2(in, off, len, out, outOff, outLen, ExtractionContext.current());
+	}
+
+	/**
+	 * Decompresses a sector of a version 1 or later archive, see
+	 * {@link CompressionUtil#decompressVersion2(byte[], int, int, byte[], int, int)}, using the codecs of the given
+	 * context.
+	 */
+	public static void decompressVersion2(byte[] in, int off, int len, byte[] out, int outOff, int outLen, ExtractionContext context) throws IOException {
+		if (len == outLen) {
+			System.arraycopy(in, off, out, outOff, len);
+			return;
+		}
+
+		int compressionType = in[off];
+		SectorCodec codec = SectorCodecs.get(compressionType);
+		if (codec != null) {
+			codec.decompress(in, off + 1, len - 1, out, outOff, outLen, context);
+			return;
+		}
 
 		switch (compressionType) {
-			case FLAG_DEFLATE -> inflate(sector, out);
-			case FLAG_IMPLODE -> Exploder.pkexplode(sector, out, 1);
+			case FLAG_DEFLATE -> inflate(in, off + 1, len - 1, out, outOff, outLen, context);
+			case FLAG_IMPLODE -> Exploder.pkexplode(in, off + 1, len - 1, out, outOff, outLen);
 			case FLAG_BZIP2 -> {
-				InputStream inputStream = new ByteArrayInputStream(sector, 1, sector.length - 1);
-				try (BZip2CompressorInputStream bZip2CompressorInputStream = new BZip2CompressorInputStream(inputStream)) {
-					if (bZip2CompressorInputStream.read(out, 0, uncompressedSize) != uncompressedSize)
-						throw new IllegalStateException();
-				}
+				if (bunzip2(in, off + 1, len - 1, out, outOff, outLen) != outLen)
+					throw new JMpqException("Unexpected end of bzip2 data");
+			}
+			case FLAG_SPARSE -> Sparse.decompress(in, off + 1, len - 1, out, outOff, outLen);
+			case FLAG_SPARSE | FLAG_DEFLATE -> {
+				int stageLen = Sparse.maxCompressedSize(outLen);
+				byte[] stage = context.stageBuffer(0, stageLen);
+				stageLen = inflate(in, off + 1, len - 1, stage, 0, stageLen, context);
+				Sparse.decompress(stage, 0, stageLen, out, outOff, outLen);
 			}
-			case FLAG_LZMA,
-				FLAG_SPARSE,
-				FLAG_SPARSE | FLAG_DEFLATE,
-				FLAG_SPARSE | FLAG_BZIP2,
-				FLAG_ADPCM1C | FLAG_HUFFMAN,
-				FLAG_ADPCM2C | FLAG_HUFFMAN ->
+			case FLAG_SPARSE | FLAG_BZIP2 -> {
+				int stageLen = Sparse.maxCompressedSize(outLen);
+				byte[] stage = context.stageBuffer(0, stageLen);
+				stageLen = bunzip2(in, off + 1, len - 1, stage, 0, stageLen);
+				Sparse.decompress(stage, 0, stageLen, out, outOff, outLen);
+			}
+			case FLAG_ADPCM1C | FLAG_HUFFMAN -> decompressAdpcm(in, off + 1, len - 1, out, outOff, outLen, 1, context);
+			case FLAG_ADPCM2C | FLAG_HUFFMAN -> decompressAdpcm(in, off + 1, len - 1, out, outOff, outLen, 2, context);
+			case FLAG_LZMA ->
 				throw new JMpqException("Unsupported compression type/combination: 0x" + Integer.toHexString(compressionType & 0xFF));
 			default ->
 				throw new JMpqException("Invalid compression type/combination: 0x" + Integer.toHexString(compressionType & 0xFF));
 		}
+	}
 
-		return out;
+	/**
+	 * Decodes Huffman compressed ADPCM audio. The Huffman output goes to the scratch space of the context and is read
+	 * from there by the ADPCM decoder, both reusing the codec state of the context.
+	 *
+	 * @param channels number of audio channels, 1 or 2.
+	 */
+	private static void decompressAdpcm(byte[] in, int off, int len, byte[] out, int outOff, int outLen, int channels, ExtractionContext context) {
+		byte[] stage = context.stageBuffer(1, outLen);
+		ByteBuffer samples = ByteBuffer.wrap(stage, 0, outLen);
+		context.huffman().decompress(ByteBuffer.wrap(in, off, len), samples);
+		samples.flip();
+		context.adpcm().decompress(samples, ByteBuffer.wrap(out, outOff, outLen), channels);
+	}
+
+	/**
+	 * Decompresses bzip2 data from a range of the input array into a range of the output array, stopping once the
+	 * output range is full.
+	 *
+	 * @return number of bytes decompressed.
+	 */
+	private static int bunzip2(byte[] in, int off, int len, byte[] out, int outOff, int outLen) throws IOException {
+		InputStream inputStream = new ByteArrayInputStream(in, off, len);
+		try (BZip2CompressorInputStream bZip2CompressorInputStream = new BZip2CompressorInputStream(inputStream)) {
+			int pos = 0;
+			while (pos < outLen) {
+				int read = bZip2CompressorInputStream.read(out, outOff + pos, outLen - pos);
+				if (read < 0)
+					break;
+				pos += read;
+			}
+			return pos;
+		}
 	}
 
     public static byte[] explode(byte[] sector, int compressedSize, int uncompressedSize) {
@@ -121,15 +238,93 @@ public class CompressionUtil {
         }
     }
 
+    /**
+     * Explodes a sector of an imploded file, which has no compression type, from a range of the input array into a
+     * range of the output array.
+     */
+    public static void explode(byte[] in, int off, int len, byte[] out, int outOff, int outLen) {
+        if (len == outLen) {
+            System.arraycopy(in, off, out, outOff, len);
+        } else {
+            Exploder.pkexplode(in, off, len, out, outOff, outLen);
+        }
+    }
+
+
+
     public static void inflate(byte[] input, byte[] output) throws IOException {
-        ByteArrayInputStream in = new ByteArrayInputStream(input, 1, input.length - 1);
-        try (InflaterInputStream stream = new InflaterInputStream(in, new Inflater(), input.length - 1)) {
-            for(int read = 0, pos = 0; read != -1 && pos < output.length; pos += read) {
-                read = stream.read(output, pos, output.length - pos);
+        inflate(input, 1, input.length - 1, output, 0, output.length);
+    }
+
+    /**
+     * Inflates a range of the input array into a range of the output array.
+     *
+     * @return number of bytes inflated.
+     */
+    public static int inflate(byte[] input, int off, int len, byte[] output, int outOff, int outLen) throws IOException {
+        return inflate(input, off, len, output, outOff, outLen, ExtractionContext.current());
+    }
+
+    /**
+     * Inflates a range of the input array into a range of the output array, using the inflater of the given context.
+     * Inflating stops once the output range is full.
+     *
+     * @return number of bytes inflated.
+     */
+    public static int inflate(byte[] input, int off, int len, byte[] output, int outOff, int outLen, ExtractionContext context) throws IOException {
+        Inflater inflater = context.inflater();
+        inflater.setInput(input, off, len);
+        try {
+            int pos = 0;
+            while (pos < outLen && !inflater.finished()) {
+                int read = inflater.inflate(output, outOff + pos, outLen - pos);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new JMpqException("Unexpected end of deflate data");
+                pos += read;
+            }
+            return pos;
+        } catch (DataFormatException e) {
+            String msg = e.getMessage();
+            throw new JMpqException(msg != null ? msg : "Invalid deflate data");
+        }
+    }
+
+    /**
+     * Inflates the remaining input buffer into the remaining output buffer, using the inflater of the given context.
+     * Either buffer may be direct, such as a slice of a memory mapped archive, so no data is copied to heap arrays.
+     * Inflating stops once the output buffer is full. The positions of both buffers are advanced past the data read
+     * and written.
+     *
+     * @return number of bytes inflated.
+     */
+    public static int inflate(ByteBuffer input, ByteBuffer output, ExtractionContext context) throws IOException {
+        Inflater inflater = context.inflater();
+        inflater.setInput(input);
+        try {
+            int start = output.position();
+            while (output.hasRemaining() && !inflater.finished()) {
+                int read = inflater.inflate(output);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new JMpqException("Unexpected end of deflate data");
             }
+            return output.position() - start;
+        } catch (DataFormatException e) {
+            String msg = e.getMessage();
+            throw new JMpqException(msg != null ? msg : "Invalid deflate data");
         }
     }
 
+    /**
+     * Checks if a compressed sector of any archive version is compressed with deflate alone, so it can be decoded by
+     * {@link CompressionUtil#inflate(ByteBuffer, ByteBuffer, ExtractionContext)} after skipping the compression type.
+     * This is not the case if a {@link SectorCodec} is registered for deflate.
+     *
+     * @param compressionType first byte of the sector data.
+     */
+    public static boolean isDeflateOnly(byte compressionType) {
+        return compressionType == FLAG_DEFLATE && SectorCodecs.get(FLAG_DEFLATE) == null;
+    }
+
     private CompressionUtil() {
     }
 }
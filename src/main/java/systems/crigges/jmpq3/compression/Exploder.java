@@ -1,8 +1,15 @@
 package systems.crigges.jmpq3.compression;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
 /*
   Taken from: https://github.com/horschi/OpenTeufel/blob/master/src/main/java/org/openteufel/file/mpq/explode/Exploder.java
 
-  Modifications: Removed unused variables, made the static arrays private and changed formatting, set pInPos to 1
+  Modifications: Removed unused variables, made the static arrays private and changed formatting, set pInPos to 1,
+  replaced the linear code searches with decode tables and the sliding dictionary with the output buffer
 
   *************
 
@@ -44,10 +51,6 @@ public class Exploder {
     private static final int PK_LITERAL_SIZE_FIXED = 0; // Use fixed size literal bytes, used for binary data
     private static final int PK_LITERAL_SIZE_VARIABLE = 1; // Use variable size literal bytes, used for text
 
-    private static long truncateValue(long value, int bits)  {
-        return ((value) & ((1L << (bits)) - 1));
-    }
-
     // Bit sequences used to represent literal bytes
     private static final short[] ChCode =
             {
@@ -150,13 +153,55 @@ public class Exploder {
                     0x08, 0x08, 0x08, 0x08, 0x08, 0x08, 0x08, 0x08, 0x08, 0x08, 0x08, 0x08, 0x08, 0x08, 0x08, 0x08
             };
 
+    // Decode tables, indexed by the next bits of the bit buffer. Every entry holds the index of the code starting
+    // with these bits in the low 16 bits and the length of that code in the high 16 bits, see GenDecodeTabs of StormLib
+    private static final int[] LenDecode = new int[1 << 7];
+    private static final int[] OffsDecode = new int[1 << 8];
+    private static final int[] ChDecode = new int[1 << 13];
+
+    static {
+        for (int i = 0; i < LenCode.length; i++)
+            genDecodeTab(LenDecode, LenCode[i] & 0xFF, LenBits[i] & 0xFF, i);
+        for (int i = 0; i < OffsCode.length; i++)
+            genDecodeTab(OffsDecode, OffsCode[i] & 0xFF, OffsBits[i] & 0xFF, i);
+        for (int i = 0; i < ChCode.length; i++)
+            genDecodeTab(ChDecode, ChCode[i] & 0xFFFF, ChBits[i] & 0xFF, i);
+    }
+
+    private static void genDecodeTab(int[] table, int code, int bits, int index) {
+        for (int i = code; i < table.length; i += 1 << bits)
+            table[i] = index | bits << 16;
+    }
+
+    // View of byte arrays as little endian longs, used to fill the bit buffer 8 bytes at a time
+    private static final VarHandle LongView = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
     public static void pkexplode(byte[] pInBuffer, byte[] pOutBuffer, int inPos) {
+        pkexplode(pInBuffer, inPos, pInBuffer.length - inPos, pOutBuffer, 0, pOutBuffer.length);
+    }
+
+    /**
+     * Explodes a range of the input array into a range of the output array.
+     * <p>
+     * The output range itself is used as sliding dictionary, as every
+     * compressed sector starts with an empty dictionary.
+     *
+     * @param pInBuffer  compressed data.
+     * @param inPos      offset of the compressed data.
+     * @param inLength   length of the compressed data.
+     * @param pOutBuffer destination array.
+     * @param outPos     offset to write the decompressed data at.
+     * @param outLength  length of the decompressed data.
+     */
+    public static void pkexplode(byte[] pInBuffer, int inPos, int inLength, byte[] pOutBuffer, int outPos, int outLength) {
         // Compressed data cannot be less than 4 bytes
         // this is not possible in any case whatsoever
-        if (pInBuffer.length < 4)
+        if (inLength < 4)
             throw new IllegalArgumentException("PK_ERR_INCOMPLETE_INPUT: Incomplete input");
 
-        int pOutPos = 0;
+        final int pInEnd = inPos + inLength;
+        final int pOutEnd = outPos + outLength;
+        int pOutPos = outPos;
         // This is 1 because in an mpq-sector, the first byte is the compression type flag
         int pInPos = inPos;
 
@@ -175,139 +220,98 @@ public class Exploder {
 
         // Store actual dictionary size
         int nDictSize = 64 << nDictSizeByte;
+        int nDictMask = (1 << nDictSizeByte) - 1;
 
-        // Initialize dictionary position
-        byte[] dict = new byte[0x1000]; // Sliding dictionary used for compression and decompression
-        int pDictPos = 0;
-
-        // Initialize current dictionary size to zero
-        int nCurDictSize = 0;
-
-        // Get first 16 bits
-        byte nBits; // Number of bits in bit buffer
-        long nBitBuffer; // Stores bits until there are enough to output a byte of data
-
-        nBitBuffer = pInBuffer[pInPos++] & 0xFFL;
-        nBitBuffer += (pInBuffer[pInPos++] & 0xFFL) << 8;
-        nBits = 16;
+        // Get first 16 bits. Bits above nBits are either zero or the low bits of the next input byte,
+        // so filling the bit buffer may OR the same byte in again
+        int nBits = 16; // Number of bits in bit buffer
+        long nBitBuffer = (pInBuffer[pInPos++] & 0xFFL) | (pInBuffer[pInPos++] & 0xFFL) << 8;
 
         // Decompress until output buffer is full
-        int i; // Index into tables
-        int nCopyLen;
-        while (pOutPos < pOutBuffer.length) {
-
-            // Fill bit buffer with at least 16 bits
-            while (nBits < 16) {
-                // If input buffer is empty before end of stream, buffer is incomplete
-                if (pInPos >= pInBuffer.length) {
-                    // Store the current size of output
-                    // nOutSize = pOutPos - pOutBuffer;
-                    throw new IllegalArgumentException("PK_ERR_INCOMPLETE_INPUT: Incomplete input");
-                }
+        while (pOutPos < pOutEnd) {
+
+            // Fill bit buffer, a whole copy takes at most 30 bits
+            if (nBits < 32) {
+                if (pInEnd - pInPos >= 8) {
+                    nBitBuffer |= (long) LongView.get(pInBuffer, pInPos) << nBits;
+                    pInPos += (63 - nBits) >>> 3;
+                    nBits |= 56;
+                } else {
+                    while (nBits <= 56 && pInPos < pInEnd) {
+                        nBitBuffer |= (pInBuffer[pInPos++] & 0xFFL) << nBits;
+                        nBits += 8;
+                    }
 
-                nBitBuffer += (long) (pInBuffer[pInPos++] & 0xFF) << nBits;
-                nBits += 8;
+                    // If input buffer is empty before end of stream, buffer is incomplete
+                    if (nBits < 16)
+                        throw new IllegalArgumentException("PK_ERR_INCOMPLETE_INPUT: Incomplete input");
+                }
             }
 
             // First bit is 1; copy from dictionary
             if ((nBitBuffer & 1) != 0) {
 
-                // Remove first bit from bit buffer
-                nBitBuffer >>= 1;
-                nBits--;
-
-                // Find the base value for the copy length
-                for (i = 0; i <= 0x0F; i++) {
-                    if (truncateValue(nBitBuffer, LenBits[i] & 0xFF) == (LenCode[i] & 0xFF))
-                        break;
-                }
-
-                // Remove value from bit buffer
-                nBitBuffer >>= LenBits[i] & 0xFF;
-                nBits -= LenBits[i] & 0xFF;
-
-                // Store the copy length
-                nCopyLen = (int) ((LenBase[i] & 0xFFFF) + truncateValue(nBitBuffer, ExLenBits[i] & 0xFF)); // Length of data to copy from the dictionary
+                // Find the base value for the copy length and remove it from the bit buffer
+                int entry = LenDecode[(int) (nBitBuffer >>> 1) & 0x7F];
+                int i = entry & 0xFFFF;
+                nBitBuffer >>>= 1 + (entry >>> 16);
+                nBits -= 1 + (entry >>> 16);
 
-                // Remove the extra bits from the bit buffer
-                nBitBuffer >>= ExLenBits[i] & 0xFF;
-                nBits -= ExLenBits[i] & 0xFF;
+                // Store the copy length and remove the extra bits from the bit buffer
+                int nExBits = ExLenBits[i];
+                int nCopyLen = LenBase[i] + (int) (nBitBuffer & ((1 << nExBits) - 1)); // Length of data to copy from the dictionary
+                nBitBuffer >>>= nExBits;
+                nBits -= nExBits;
 
                 // If copy length is 519, the end of the stream has been reached
                 if (nCopyLen == 519)
                     break;
 
-                // Fill bit buffer with at least 14 bits
-                while (nBits < 14) {
-                    // If input buffer is empty before end of stream, buffer is incomplete
-                    if (pInPos >= pInBuffer.length) {
-                        // Store the current size of output
-                        // nOutSize = pOutPos - pOutBuffer;
-                        throw new IllegalArgumentException("PK_ERR_INCOMPLETE_INPUT: Incomplete input");
-                    }
-
-                    nBitBuffer += (long) (pInBuffer[pInPos++] & 0xFF) << nBits;
-                    nBits += 8;
-                }
-
-                // Find most significant 6 bits of offset into the dictionary
-                for (i = 0; i <= 0x3F; i++) {
-                    if (truncateValue(nBitBuffer, OffsBits[i] & 0xFF) == (OffsCode[i] & 0xFF))
-                        break;
-                }
+                // The bit buffer was filled as far as the input allows, so 14 bits must be left for the offset
+                if (nBits < 14)
+                    throw new IllegalArgumentException("PK_ERR_INCOMPLETE_INPUT: Incomplete input");
 
-                // Remove value from bit buffer
-                nBitBuffer >>= OffsBits[i] & 0xFF;
-                nBits -= OffsBits[i] & 0xFF;
+                // Find most significant 6 bits of offset into the dictionary and remove them from the bit buffer
+                entry = OffsDecode[(int) nBitBuffer & 0xFF];
+                i = entry & 0xFFFF;
+                nBitBuffer >>>= entry >>> 16;
+                nBits -= entry >>> 16;
 
                 // If the copy length is 2, there are only two more bits in the dictionary
                 // offset; otherwise, there are 4, 5, or 6 bits left, depending on what
                 // the dictionary size is
-                int pCopyOffs; // Offset to data to copy from the dictionary
+                int nOffset;
                 if (nCopyLen == 2) {
-
-                    // Store the exact offset to a byte in the dictionary
-                    pCopyOffs = (int) (pDictPos - 1 - ((i << 2) + (nBitBuffer & 0x03)));
-
-                    // Remove the rest of the dictionary offset from the bit buffer
-                    nBitBuffer >>= 2;
+                    nOffset = (i << 2) + (int) (nBitBuffer & 0x03);
+                    nBitBuffer >>>= 2;
                     nBits -= 2;
                 } else {
-
-                    // Store the exact offset to a byte in the dictionary
-                    pCopyOffs = (int) (pDictPos - 1 - ((i << nDictSizeByte) + truncateValue(nBitBuffer, nDictSizeByte)));
-
-                    // Remove the rest of the dictionary offset from the bit buffer
-                    nBitBuffer >>= nDictSizeByte;
+                    nOffset = (i << nDictSizeByte) + (int) (nBitBuffer & nDictMask);
+                    nBitBuffer >>>= nDictSizeByte;
                     nBits -= nDictSizeByte;
                 }
 
-                // While there are still bytes left, copy bytes from the dictionary
-                while (nCopyLen-- > 0) {
-
-                    // If output buffer has become full, stop immediately!
-                    if (pOutPos >= pOutBuffer.length)
-                        throw new IllegalArgumentException("PK_ERR_BUFFER_TOO_SMALL: Output buffer is full: " + pOutPos + " / " + pOutBuffer.length);
-
-
-                    // Check whether the offset is a valid one into the dictionary
-                    while (pCopyOffs < 0)
-                        pCopyOffs += nCurDictSize;
-                    while (pCopyOffs >= nCurDictSize)
-                        pCopyOffs -= nCurDictSize;
-
-                    // Copy the byte from the dictionary and add it to the end of the dictionary
-                    // *pDictPos++ = *pOutPos++ = *pCopyOffs++;
-                    dict[pDictPos++] = pOutBuffer[pOutPos++] = dict[pCopyOffs++];
-
-                    // If the dictionary is not full yet, increment the current dictionary size
-                    if (nCurDictSize < nDictSize)
-                        nCurDictSize++;
-
-                    // If the current end of the dictionary is past the end of the buffer,
-                    // wrap around back to the start
-                    if (pDictPos >= nDictSize)
-                        pDictPos = 0;
+                // Offsets past the start of the current dictionary wrap around within it
+                int nCurDictSize = Math.min(pOutPos - outPos, nDictSize);
+                if (nCurDictSize == 0)
+                    throw new IllegalArgumentException("PK_ERR_BAD_DATA: Copy from empty dictionary");
+                int nDistance = (nOffset < nCurDictSize ? nOffset : nOffset % nCurDictSize) + 1;
+
+                // If output buffer would become full, stop
+                if (nCopyLen > pOutEnd - pOutPos)
+                    throw new IllegalArgumentException("PK_ERR_BUFFER_TOO_SMALL: Output buffer is full: " + outLength + " / " + outLength);
+
+                // Copy the bytes from the dictionary, byte by byte if the copy overlaps itself
+                int pCopyPos = pOutPos - nDistance;
+                if (nDistance >= nCopyLen && nCopyLen > 16) {
+                    System.arraycopy(pOutBuffer, pCopyPos, pOutBuffer, pOutPos, nCopyLen);
+                    pOutPos += nCopyLen;
+                } else if (nDistance == 1) {
+                    Arrays.fill(pOutBuffer, pOutPos, pOutPos + nCopyLen, pOutBuffer[pCopyPos]);
+                    pOutPos += nCopyLen;
+                } else {
+                    for (int pCopyEnd = pOutPos + nCopyLen; pOutPos < pCopyEnd; )
+                        pOutBuffer[pOutPos++] = pOutBuffer[pCopyPos++];
                 }
             }
 
@@ -317,45 +321,21 @@ public class Exploder {
                 // Fixed size literal byte
                 if (nLitSize == PK_LITERAL_SIZE_FIXED) {
 
-                    // Copy the byte and add it to the end of the dictionary
-                    // *pDictPos++ = *pOutPos++ = (byte)(nBitBuffer >> 1);
-                    dict[pDictPos++] = pOutBuffer[pOutPos++] = (byte) (nBitBuffer >> 1);
-
-                    // Remove the byte from the bit buffer
-                    nBitBuffer >>= 9;
+                    // Copy the byte and remove it from the bit buffer
+                    pOutBuffer[pOutPos++] = (byte) (nBitBuffer >>> 1);
+                    nBitBuffer >>>= 9;
                     nBits -= 9;
                 }
 
                 // Variable size literal byte
                 else {
 
-                    // Remove the first bit from the bit buffer
-                    nBitBuffer >>= 1;
-                    nBits--;
-
-                    // Find the actual byte from the bit sequence
-                    for (i = 0; i <= 0xFF; i++) {
-                        if (truncateValue(nBitBuffer, ChBits[i] & 0xFF) == (ChCode[i] & 0xFFFF))
-                            break;
-                    }
-
-                    // Copy the byte and add it to the end of the dictionary
-                    // *pDictPos++ = *pOutPos++ = (byte)i;
-                    dict[pDictPos++] = pOutBuffer[pOutPos++] = (byte) i;
-
-                    // Remove the byte from the bit buffer
-                    nBitBuffer >>= ChBits[i] & 0xFF;
-                    nBits -= ChBits[i] & 0xFF;
+                    // Find the actual byte from the bit sequence, copy it and remove it from the bit buffer
+                    int entry = ChDecode[(int) (nBitBuffer >>> 1) & 0x1FFF];
+                    pOutBuffer[pOutPos++] = (byte) entry;
+                    nBitBuffer >>>= 1 + (entry >>> 16);
+                    nBits -= 1 + (entry >>> 16);
                 }
-
-                // If the dictionary is not full yet, increment the current dictionary size
-                if (nCurDictSize < nDictSize)
-                    nCurDictSize++;
-
-                // If the current end of the dictionary is past the end of the buffer,
-                // wrap around back to the start
-                if (pDictPos >= nDictSize)
-                    pDictPos = 0;
             }
         }
     }
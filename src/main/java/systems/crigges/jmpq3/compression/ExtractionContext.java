@@ -0,0 +1,106 @@
+package systems.crigges.jmpq3.compression;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.zip.Inflater;
+
+/**
+ * Codec state and intermediate buffers reused across the sectors and files
+ * decoded by one thread.
+ * <p>
+ * Setting up the codecs of a sector, such as the native state of an
+ * {@link Inflater} or the Huffman node pool, can cost more than decoding a
+ * small sector. A context owns one instance of each and resets it for every
+ * sector instead.
+ * <p>
+ * Every thread has its own context, see {@link #current()}, which is used
+ * unless a context is passed in explicitly. Explicit contexts should be
+ * closed to release the native memory of the inflater right away.
+ */
+@NotThreadSafe
+public final class ExtractionContext implements AutoCloseable {
+
+    /**
+     * Largest intermediate buffer kept for reuse. Larger sectors, such as
+     * single unit files, get a temporary array.
+     */
+    private static final int MAX_SCRATCH_SIZE = 0x100000;
+
+    private static final ThreadLocal<ExtractionContext> CURRENT = ThreadLocal.withInitial(() -> new ExtractionContext(true));
+
+    private final Inflater inflater = new Inflater();
+    private final Huffman huffman = new Huffman();
+    private final ADPCM adpcm = new ADPCM(2);
+    private final byte[][] stages = {new byte[0], new byte[0]};
+
+    /**
+     * If this is the context of a thread, see {@link #current()}.
+     */
+    private final boolean perThread;
+
+    private boolean closed;
+
+    /**
+     * Create a context to be passed in explicitly, which should be closed
+     * after use.
+     */
+    public ExtractionContext() {
+        this(false);
+    }
+
+    private ExtractionContext(boolean perThread) {
+        this.perThread = perThread;
+    }
+
+    /**
+     * Get the context of the current thread. It lives as long as the thread
+     * and must not be closed.
+     */
+    public static ExtractionContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Get scratch space for the intermediate data of combined compression
+     * types.
+     *
+     * @param stage index of the intermediate stage, 0 or 1.
+     * @param size  minimum size.
+     */
+    byte[] stageBuffer(int stage, int size) {
+        if (size > MAX_SCRATCH_SIZE)
+            return new byte[size];
+        if (stages[stage].length < size)
+            stages[stage] = new byte[size];
+        return stages[stage];
+    }
+
+    /**
+     * Get the inflater, reset for a new stream.
+     */
+    Inflater inflater() {
+        if (closed)
+            throw new IllegalStateException("Extraction context closed");
+        inflater.reset();
+        return inflater;
+    }
+
+    Huffman huffman() {
+        return huffman;
+    }
+
+    ADPCM adpcm() {
+        return adpcm;
+    }
+
+    /**
+     * Releases the native memory of the inflater. The context cannot decode
+     * deflated data afterwards.
+     */
+    @Override
+    public void close() {
+        if (perThread)
+            throw new IllegalStateException("The context of a thread cannot be closed");
+        closed = true;
+        inflater.end();
+    }
+}
@@ -1,111 +1,60 @@
 package systems.crigges.jmpq3.compression;
 
 import java.nio.ByteBuffer;
-import java.util.Map.Entry;
-import java.util.TreeMap;
-
+import java.util.Arrays;
+
+/**
+ * Adaptive Huffman decoder.
+ * <p>
+ * The nodes of the tree are kept in flat arrays indexed by node number. Nodes
+ * are also linked into a list ordered by descending probability, and the
+ * last node of every probability in that list is found through a bucket
+ * array with a two level bit set, so adapting the tree allocates nothing.
+ * <p>
+ * Symbols are decoded up to 7 bits at a time through a table of links into
+ * the tree. Links are only used as long as the shape of the tree has not
+ * changed since they were made.
+ */
 class Huffman {
-    private static class Node {
-        Node parent;
-        final Node[] child = new Node[2];
-        Node next;
-        Node prev;
-        int value;
-        int probability;
-
-        void treeSwap(Node with) {
-            Node temp;
-
-            if (parent == with.parent) {
-                temp = parent.child[0];
-                parent.child[0] = parent.child[1];
-                parent.child[1] = temp;
-            } else {
-                if (with.parent.child[0] == with) with.parent.child[0] = this;
-                else with.parent.child[1] = this;
-                if (this.parent.child[0] == this) this.parent.child[0] = with;
-                else this.parent.child[1] = with;
-            }
-
-            temp = parent;
-            parent = with.parent;
-            with.parent = temp;
-        }
-
-        void insertAfter(Node where) {
-            prev = where;
-            next = where.next;
-            where.next = this;
-            next.prev = this;
-        }
-
-        void listSwap(Node with) {
-            if (next == with) {
-                next = with.next;
-                with.next = this;
-                with.prev = prev;
-                prev = with;
-
-                with.prev.next = with;
-                next.prev = this;
-            } else if (prev == with) {
-                prev = with.prev;
-                with.prev = this;
-                with.next = next;
-                next = with;
-
-                with.next.prev = with;
-                prev.next = this;
-            } else {
-                Node temp = prev;
-                prev = with.prev;
-                with.prev = temp;
-
-                temp = next;
-                next = with.next;
-                with.next = temp;
-
-                prev.next = this;
-                next.prev = this;
-
-                with.prev.next = with;
-                with.next.prev = with;
-            }
-        }
-
-        void newList() {
-            prev = next = this;
-        }
-
-        Node removeFromList() {
-            if (this == next) return null;
-
-            prev.next = next;
-            next.prev = prev;
+    private static final int NIL = -1;
 
-            return next;
-        }
+    /**
+     * Value of branch nodes.
+     */
+    private static final int BRANCH = -1;
 
-        void joinList(Node list) {
-            Node tail = prev;
+    private static final int LINK_BITS = 7;
 
-            prev = list.prev;
-            prev.next = this;
+    // nodes
+    private int[] parent = new int[0x400];
+    private int[] child = new int[0x800];
+    private int[] next = new int[0x400];
+    private int[] prev = new int[0x400];
+    private int[] value = new int[0x400];
+    private int[] probability = new int[0x400];
+    private int nodeCount;
 
-            list.prev = tail;
-            tail.next = list;
-        }
-    }
+    private int root = NIL;
 
-    private Node nodes = null;
-    private final TreeMap<Integer, Node> sorted2 = new TreeMap<>();
+    // last node of every probability in the list, present if set in the bit set
+    private int[] lastByProbability = new int[0x1000];
+    private long[] probabilityBits = new long[0x1000 >>> 6];
+    private long[] probabilitySummary = new long[1];
 
-    private Node root = null;
+    // links into the tree by the next bits of input
+    private final int[] linkNode = new int[1 << LINK_BITS];
+    private final int[] linkDepth = new int[1 << LINK_BITS];
+    private final int[] linkVersion = new int[1 << LINK_BITS];
+    private int treeVersion;
 
     private int bitBuffer;
-    private byte bitNumber;
+    private int bitNumber;
     private ByteBuffer source;
 
+    Huffman() {
+        Arrays.fill(linkVersion, -1);
+    }
+
     private void setSource(ByteBuffer source) {
         this.source = source;
         bitBuffer = 0;
@@ -125,103 +74,255 @@ class Huffman {
         return result;
     }
 
-    private Node getNode() {
-        Node node;
-        if (nodes == null) node = new Node();
-        else {
-            node = nodes;
-            nodes = nodes.removeFromList();
+    /**
+     * Loads input into the bit buffer, without reading past the end of the
+     * input.
+     *
+     * @return true if the bit buffer holds at least the requested bits.
+     */
+    private boolean fillBits(int bits) {
+        while (bitNumber < bits && source.hasRemaining()) {
+            bitBuffer |= ((int) source.get() & 0xFF) << bitNumber;
+            bitNumber += 8;
+        }
+        return bitNumber >= bits;
+    }
+
+    private void treeChanged() {
+        if (++treeVersion == Integer.MAX_VALUE) {
+            Arrays.fill(linkVersion, -1);
+            treeVersion = 0;
         }
-        return node;
     }
 
-    private void destroyTree(Node root) {
-        if (nodes == null) nodes = root;
-        else nodes.joinList(root);
-        this.root = null;
-        sorted2.clear();
+    // probability buckets, replacing a sorted map from probability to node
+
+    private int lastOf(int prob) {
+        if (prob >= lastByProbability.length || (probabilityBits[prob >>> 6] & 1L << prob) == 0)
+            return NIL;
+        return lastByProbability[prob];
     }
 
-    private void insertNode(Node node) {
-        Entry<Integer, Node> test2 = sorted2.ceilingEntry(node.probability);
-        Node current;
+    private void setLast(int prob, int node) {
+        if (prob >= lastByProbability.length) {
+            int capacity = Integer.highestOneBit(prob) << 1;
+            lastByProbability = Arrays.copyOf(lastByProbability, capacity);
+            probabilityBits = Arrays.copyOf(probabilityBits, capacity >>> 6);
+            probabilitySummary = Arrays.copyOf(probabilitySummary, (capacity >>> 12) + 1);
+        }
+        lastByProbability[prob] = node;
+        probabilityBits[prob >>> 6] |= 1L << prob;
+        probabilitySummary[prob >>> 12] |= 1L << (prob >>> 6);
+    }
 
+    private void removeLast(int prob) {
+        int word = prob >>> 6;
+        probabilityBits[word] &= ~(1L << prob);
+        if (probabilityBits[word] == 0)
+            probabilitySummary[word >>> 6] &= ~(1L << word);
+    }
+
+    /**
+     * Get the last node of the lowest probability which is at least the
+     * given probability.
+     */
+    private int ceilingLast(int prob) {
+        if (prob >= lastByProbability.length)
+            return NIL;
+
+        int word = prob >>> 6;
+        long bits = probabilityBits[word] & -1L << prob;
+        if (bits == 0) {
+            word = nextWord(word + 1);
+            if (word == NIL)
+                return NIL;
+            bits = probabilityBits[word];
+        }
+        return lastByProbability[word << 6 | Long.numberOfTrailingZeros(bits)];
+    }
 
-        if (test2 != null) {
-            current = test2.getValue();
-            node.insertAfter(current);
+    private int nextWord(int word) {
+        int index = word >>> 6;
+        if (index >= probabilitySummary.length)
+            return NIL;
+
+        long bits = probabilitySummary[index] & -1L << word;
+        while (bits == 0) {
+            if (++index >= probabilitySummary.length)
+                return NIL;
+            bits = probabilitySummary[index];
+        }
+        int found = index << 6 | Long.numberOfTrailingZeros(bits);
+        return found < probabilityBits.length ? found : NIL;
+    }
+
+    private void clearProbabilities() {
+        for (int i = 0; i < probabilitySummary.length; i++) {
+            for (long bits = probabilitySummary[i]; bits != 0; bits &= bits - 1)
+                probabilityBits[i << 6 | Long.numberOfTrailingZeros(bits)] = 0;
+            probabilitySummary[i] = 0;
+        }
+    }
+
+    // nodes
+
+    private int getNode() {
+        if (nodeCount == parent.length) {
+            int capacity = nodeCount * 2;
+            parent = Arrays.copyOf(parent, capacity);
+            child = Arrays.copyOf(child, capacity * 2);
+            next = Arrays.copyOf(next, capacity);
+            prev = Arrays.copyOf(prev, capacity);
+            value = Arrays.copyOf(value, capacity);
+            probability = Arrays.copyOf(probability, capacity);
+        }
+        return nodeCount++;
+    }
+
+    private void treeSwap(int node, int with) {
+        int nodeParent = parent[node];
+        int withParent = parent[with];
+
+        if (nodeParent == withParent) {
+            int temp = child[nodeParent << 1];
+            child[nodeParent << 1] = child[nodeParent << 1 | 1];
+            child[nodeParent << 1 | 1] = temp;
+        } else {
+            if (child[withParent << 1] == with) child[withParent << 1] = node;
+            else child[withParent << 1 | 1] = node;
+            if (child[nodeParent << 1] == node) child[nodeParent << 1] = with;
+            else child[nodeParent << 1 | 1] = with;
+        }
+
+        parent[node] = withParent;
+        parent[with] = nodeParent;
+        treeChanged();
+    }
+
+    private void insertAfter(int node, int where) {
+        prev[node] = where;
+        next[node] = next[where];
+        next[where] = node;
+        prev[next[node]] = node;
+    }
+
+    private void listSwap(int node, int with) {
+        if (next[node] == with) {
+            next[node] = next[with];
+            next[with] = node;
+            prev[with] = prev[node];
+            prev[node] = with;
+
+            next[prev[with]] = with;
+            prev[next[node]] = node;
+        } else if (prev[node] == with) {
+            prev[node] = prev[with];
+            prev[with] = node;
+            next[with] = next[node];
+            next[node] = with;
+
+            prev[next[with]] = with;
+            next[prev[node]] = node;
         } else {
-            if (root != null) {
-                node.insertAfter(root.prev);
+            int temp = prev[node];
+            prev[node] = prev[with];
+            prev[with] = temp;
+
+            temp = next[node];
+            next[node] = next[with];
+            next[with] = temp;
+
+            next[prev[node]] = node;
+            prev[next[node]] = node;
+
+            next[prev[with]] = with;
+            prev[next[with]] = with;
+        }
+    }
+
+    private void destroyTree() {
+        nodeCount = 0;
+        root = NIL;
+        clearProbabilities();
+    }
+
+    private void insertNode(int node) {
+        int current = ceilingLast(probability[node]);
+
+        if (current != NIL) {
+            insertAfter(node, current);
+        } else {
+            if (root != NIL) {
+                insertAfter(node, prev[root]);
             } else {
-                node.newList();
+                prev[node] = next[node] = node;
             }
             root = node;
         }
 
-        sorted2.put(node.probability, node);
+        setLast(probability[node], node);
     }
 
-    private Node addValueToTree(int value) {
+    private int addValueToTree(int val) {
         // create leaf node
-        Node node = getNode();
-        node.value = value;
-        node.probability = 0;
-        node.child[0] = null;
-        node.child[1] = null;
+        int node = getNode();
+        value[node] = val;
+        probability[node] = 0;
+        child[node << 1] = NIL;
+        child[node << 1 | 1] = NIL;
 
         insertNode(node);
 
         // create branch node
-        Node node2 = getNode();
-        Node child1 = root.prev;
-        Node child2 = child1.prev;
+        int node2 = getNode();
+        int child1 = prev[root];
+        int child2 = prev[child1];
 
-        node2.value = -1;
-        node2.probability = child1.probability + child2.probability;
-        node2.child[0] = child1;
-        node2.child[1] = child2;
-        node2.parent = child2.parent;
+        value[node2] = BRANCH;
+        probability[node2] = probability[child1] + probability[child2];
+        child[node2 << 1] = child1;
+        child[node2 << 1 | 1] = child2;
+        parent[node2] = parent[child2];
 
-        node2.insertAfter(child2.prev);
+        insertAfter(node2, prev[child2]);
 
         // insert into tree
-        if (node2.parent.child[0] == child2) node2.parent.child[0] = node2;
-        else node2.parent.child[1] = node2;
+        int node2Parent = parent[node2];
+        if (child[node2Parent << 1] == child2) child[node2Parent << 1] = node2;
+        else child[node2Parent << 1 | 1] = node2;
 
-        child1.parent = node2;
-        child2.parent = node2;
+        parent[child1] = node2;
+        parent[child2] = node2;
+        treeChanged();
 
         return node;
     }
 
-    private void incrementProbability(Node node) {
-        while (node != null) {
-            // possible optimization here. Is all this really nescescary to enforce order?
-            if (sorted2.get(node.probability) == node) {
-                if (node.probability == node.prev.probability)
-                    sorted2.put(node.probability, node.prev);
+    private void incrementProbability(int node) {
+        while (node != NIL) {
+            int prob = probability[node];
+            if (lastOf(prob) == node) {
+                if (prob == probability[prev[node]])
+                    setLast(prob, prev[node]);
                 else
-                    sorted2.remove(node.probability);
+                    removeLast(prob);
             }
-            node.probability += 1;
+            probability[node] = ++prob;
 
-            Entry<Integer, Node> test2 = sorted2.ceilingEntry(node.probability);
-            Node where;
-            if (test2 != null) where = test2.getValue().next;
-            else where = root;
+            int last = ceilingLast(prob);
+            int where = last != NIL ? next[last] : root;
 
             if (where != node) {
-                node.listSwap(where);
-                node.treeSwap(where);
+                listSwap(node, where);
+                treeSwap(node, where);
 
-                if (where.probability != where.next.probability) {
-                    sorted2.put(where.probability, where);
+                if (probability[where] != probability[next[where]]) {
+                    setLast(probability[where], where);
                 }
             }
-            sorted2.put(node.probability, node);
+            setLast(prob, node);
 
-            node = node.parent;
+            node = parent[node];
         }
     }
 
@@ -229,7 +330,7 @@ class Huffman {
         byte[] probabilities = PROBABILITY_TABLES[tree];
 
         // destroy any existing tree
-        if (root != null) destroyTree(root);
+        if (root != NIL) destroyTree();
 
         // generate leaves
         for (int i = 0; i < 0x102; i++) {
@@ -237,35 +338,65 @@ class Huffman {
 
             if (prob == 0) continue;
 
-            Node node = getNode();
-            node.value = i;
-            node.probability = prob;
-            node.child[0] = null;
-            node.child[1] = null;
+            int node = getNode();
+            value[node] = i;
+            probability[node] = prob;
+            child[node << 1] = NIL;
+            child[node << 1 | 1] = NIL;
 
             insertNode(node);
         }
 
         // generate tree
-        Node current = root.prev;
+        int current = prev[root];
         while (current != root) {
-            Node node = getNode();
-            Node child1 = current;
-            Node child2 = current = current.prev;
+            int node = getNode();
+            int child1 = current;
+            int child2 = current = prev[current];
 
-            child1.parent = node;
-            child2.parent = node;
+            parent[child1] = node;
+            parent[child2] = node;
 
-            node.value = -1;
-            node.probability = child1.probability + child2.probability;
-            node.child[0] = child1;
-            node.child[1] = child2;
+            value[node] = BRANCH;
+            probability[node] = probability[child1] + probability[child2];
+            child[node << 1] = child1;
+            child[node << 1 | 1] = child2;
             insertNode(node);
 
-            current = current.prev;
+            current = prev[current];
+        }
+
+        parent[root] = NIL;
+        treeChanged();
+    }
+
+    /**
+     * Walks the tree from the root to the leaf selected by the next bits of
+     * input.
+     */
+    private int decodeLeaf() {
+        int node = root;
+
+        if (fillBits(LINK_BITS)) {
+            int bits = bitBuffer & ((1 << LINK_BITS) - 1);
+            int depth;
+            if (linkVersion[bits] == treeVersion) {
+                node = linkNode[bits];
+                depth = linkDepth[bits];
+            } else {
+                for (depth = 0; depth < LINK_BITS && value[node] == BRANCH; depth++)
+                    node = child[node << 1 | (bits >>> depth & 1)];
+                linkNode[bits] = node;
+                linkDepth[bits] = depth;
+                linkVersion[bits] = treeVersion;
+            }
+            bitBuffer >>>= depth;
+            bitNumber -= depth;
         }
 
-        root.parent = null;
+        while (value[node] == BRANCH)
+            node = child[node << 1 | getBits(1)];
+        return node;
     }
 
     void decompress(ByteBuffer in, ByteBuffer out) {
@@ -276,20 +407,18 @@ class Huffman {
         boolean adjustProbability = type == 0;
 
         for (; ; ) {
-            Node current = root;
-            while (current.value == -1)
-                current = current.child[getBits(1)];
+            int current = decodeLeaf();
 
-            if (current.value == 0x101) {
-                int value = getBits(8);
-                current = addValueToTree(value);
+            if (value[current] == 0x101) {
+                int val = getBits(8);
+                current = addValueToTree(val);
                 incrementProbability(current);
                 if (!adjustProbability) incrementProbability(current);
-            } else if (current.value == 0x100) {
+            } else if (value[current] == 0x100) {
                 break;
             }
 
-            out.put((byte) current.value);
+            out.put((byte) value[current]);
 
             if (adjustProbability) {
                 incrementProbability(current);
@@ -0,0 +1,93 @@
+package systems.crigges.jmpq3.compression;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decoder of the sectors compressed with one compression mask, the first
+ * byte of a compressed sector.
+ * <p>
+ * Codecs replace the built in decoding of their mask for all archive
+ * versions. They are registered with {@link SectorCodecs#register} or found
+ * through {@link java.util.ServiceLoader} by listing them in
+ * {@code META-INF/services/systems.crigges.jmpq3.compression.SectorCodec},
+ * which allows a faster or native implementation to be added by putting it on
+ * the class path.
+ * <p>
+ * Sectors are passed as arrays, or as buffers when the sector data or the
+ * destination is not backed by an array, such as a memory mapped archive or a
+ * direct destination buffer. A codec binding a native library should
+ * implement {@link #decompress(ByteBuffer, ByteBuffer, ExtractionContext)} to
+ * decode such sectors without copying them to and from the heap.
+ * <p>
+ * No native codec is bundled. Deflate is decoded by {@link java.util.zip.Inflater},
+ * which already uses the zlib of the JDK and decodes between direct buffers.
+ * <p>
+ * Implementations are shared by all threads. State reused between sectors
+ * belongs in the {@link ExtractionContext} passed to each call.
+ */
+@ThreadSafe
+public interface SectorCodec {
+
+    /**
+     * Get the compression mask decoded by this codec, from 0x01 to 0xFF.
+     */
+    int compressionMask();
+
+    /**
+     * Decompresses a sector from a range of the input array into a range of
+     * the output array.
+     *
+     * @param in      compressed data following the compression mask.
+     * @param off     offset of the compressed data.
+     * @param len     length of the compressed data.
+     * @param out     destination array.
+     * @param outOff  offset to write the decompressed sector at.
+     * @param outLen  size of the decompressed sector.
+     * @param context scratch space of the calling thread.
+     * @throws IOException if the data is corrupt.
+     */
+    void decompress(byte[] in, int off, int len, byte[] out, int outOff, int outLen, ExtractionContext context) throws IOException;
+
+    /**
+     * Decompresses a sector from the remaining input buffer into the
+     * remaining output buffer. Used when one of the buffers is not backed by
+     * an array. The positions of both buffers are advanced to their limits.
+     * <p>
+     * The default implementation copies buffers which are not backed by an
+     * array and decodes with
+     * {@link #decompress(byte[], int, int, byte[], int, int, ExtractionContext)}.
+     *
+     * @param in      compressed data following the compression mask.
+     * @param out     destination buffer, with the size of the decompressed
+     *                sector remaining.
+     * @param context scratch space of the calling thread.
+     * @throws IOException if the data is corrupt.
+     */
+    default void decompress(ByteBuffer in, ByteBuffer out, ExtractionContext context) throws IOException {
+        final int len = in.remaining();
+        final int outLen = out.remaining();
+
+        final byte[] src;
+        final int off;
+        if (in.hasArray()) {
+            src = in.array();
+            off = in.arrayOffset() + in.position();
+        } else {
+            src = new byte[len];
+            in.get(in.position(), src);
+            off = 0;
+        }
+
+        if (out.hasArray()) {
+            decompress(src, off, len, out.array(), out.arrayOffset() + out.position(), outLen, context);
+        } else {
+            final byte[] dst = new byte[outLen];
+            decompress(src, off, len, dst, 0, outLen, context);
+            out.put(out.position(), dst);
+        }
+        in.position(in.limit());
+        out.position(out.limit());
+    }
+}
@@ -0,0 +1,86 @@
+package systems.crigges.jmpq3.compression;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Registry of the {@link SectorCodec} used for each compression mask.
+ * <p>
+ * Codecs listed as services are registered when the class is loaded. Masks
+ * without a codec are decoded by {@link CompressionUtil}.
+ */
+@ThreadSafe
+public final class SectorCodecs {
+
+    private static final Logger log = LoggerFactory.getLogger(SectorCodecs.class.getName());
+
+    /**
+     * Codec of each mask, replaced as a whole on every change so lookups
+     * need no locking.
+     */
+    private static volatile SectorCodec[] codecs = new SectorCodec[0x100];
+
+    static {
+        final Iterator<SectorCodec> services = ServiceLoader.load(SectorCodec.class, SectorCodecs.class.getClassLoader()).iterator();
+        while (true) {
+            try {
+                if (!services.hasNext())
+                    break;
+                final SectorCodec codec = services.next();
+                register(codec);
+                log.debug("Registered sector codec " + codec.getClass().getName() + " for mask 0x"
+                        + Integer.toHexString(codec.compressionMask()));
+            } catch (ServiceConfigurationError | IllegalArgumentException e) {
+                // an unusable codec, such as one missing its native library, must not break decoding
+                log.warn("Skipped sector codec: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Register a codec for its compression mask, replacing the codec
+     * registered before.
+     *
+     * @param codec codec to use.
+     * @throws IllegalArgumentException if the compression mask is invalid.
+     */
+    public static synchronized void register(SectorCodec codec) {
+        final int mask = codec.compressionMask();
+        if (mask < 0x01 || mask > 0xFF)
+            throw new IllegalArgumentException("Invalid compression mask <" + mask + ">.");
+
+        final SectorCodec[] updated = codecs.clone();
+        updated[mask] = codec;
+        codecs = updated;
+    }
+
+    /**
+     * Remove the codec of a compression mask, returning to the built in
+     * decoding.
+     *
+     * @param mask compression mask.
+     */
+    public static synchronized void unregister(int mask) {
+        final SectorCodec[] updated = codecs.clone();
+        updated[mask & 0xFF] = null;
+        codecs = updated;
+    }
+
+    /**
+     * Get the codec of a compression mask.
+     *
+     * @param mask compression mask, the first byte of a compressed sector.
+     * @return registered codec, or null to use the built in decoding.
+     */
+    public static SectorCodec get(int mask) {
+        return codecs[mask & 0xFF];
+    }
+
+    private SectorCodecs() {
+    }
+}
@@ -0,0 +1,74 @@
+package systems.crigges.jmpq3.compression;
+
+import systems.crigges.jmpq3.JMpqException;
+
+import java.util.Arrays;
+
+/**
+ * Decoder of the sparse compression of version 2 and later archives, a run
+ * length encoding of zero bytes.
+ * <p>
+ * The data starts with the decoded size as big endian 32 bit integer,
+ * followed by chunks. A chunk with the high bit set holds (n & 0x7F) + 1
+ * literal bytes, any other chunk stands for (n & 0x7F) + 3 zero bytes.
+ */
+public class Sparse {
+
+    /**
+     * Get the largest size of sparse data decoding to the given size, a
+     * header and literal chunks only.
+     *
+     * @param size decoded size.
+     */
+    public static int maxCompressedSize(int size) {
+        return 4 + size + (size + 127) / 128;
+    }
+
+    /**
+     * Decodes sparse data from a range of the input array into a range of
+     * the output array. Output past the decoded size is zeroed.
+     *
+     * @param in     sparse data.
+     * @param off    offset of the sparse data.
+     * @param len    length of the sparse data.
+     * @param out    destination array.
+     * @param outOff offset to write the decoded data at.
+     * @param outLen size of the output range.
+     * @return decoded size.
+     * @throws JMpqException if the data is corrupt or does not fit the output
+     *                       range.
+     */
+    public static int decompress(byte[] in, int off, int len, byte[] out, int outOff, int outLen) throws JMpqException {
+        if (len < 4)
+            throw new JMpqException("Sparse data too short <" + len + ">.");
+
+        final int size = (in[off] & 0xFF) << 24 | (in[off + 1] & 0xFF) << 16 | (in[off + 2] & 0xFF) << 8 | in[off + 3] & 0xFF;
+        if (size < 0 || size > outLen)
+            throw new JMpqException("Invalid sparse size <" + Integer.toUnsignedString(size) + ">.");
+
+        int pos = off + 4;
+        final int end = off + len;
+        int outPos = outOff;
+        final int outEnd = outOff + size;
+        while (pos < end && outPos < outEnd) {
+            final int chunk = in[pos++];
+            if (chunk < 0) {
+                final int count = Math.min((chunk & 0x7F) + 1, outEnd - outPos);
+                if (count > end - pos)
+                    throw new JMpqException("Unexpected end of sparse data");
+                System.arraycopy(in, pos, out, outPos, count);
+                pos += count;
+                outPos += count;
+            } else {
+                final int count = Math.min(chunk + 3, outEnd - outPos);
+                Arrays.fill(out, outPos, outPos + count, (byte) 0);
+                outPos += count;
+            }
+        }
+        Arrays.fill(out, outPos, outOff + outLen, (byte) 0);
+        return size;
+    }
+
+    private Sparse() {
+    }
+}
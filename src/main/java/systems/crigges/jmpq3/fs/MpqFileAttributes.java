@@ -0,0 +1,51 @@
+package systems.crigges.jmpq3.fs;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Basic attributes of a file or directory inside an MPQ archive. MPQ
+ * archives do not store file times, so all times are the epoch.
+ *
+ * @param size        decompressed file size, 0 for directories.
+ * @param isDirectory if the path is a directory.
+ */
+record MpqFileAttributes(long size, boolean isDirectory) implements BasicFileAttributes {
+
+    private static final FileTime EPOCH = FileTime.fromMillis(0);
+
+    @Override
+    public FileTime lastModifiedTime() {
+        return EPOCH;
+    }
+
+    @Override
+    public FileTime lastAccessTime() {
+        return EPOCH;
+    }
+
+    @Override
+    public FileTime creationTime() {
+        return EPOCH;
+    }
+
+    @Override
+    public boolean isRegularFile() {
+        return !isDirectory;
+    }
+
+    @Override
+    public boolean isSymbolicLink() {
+        return false;
+    }
+
+    @Override
+    public boolean isOther() {
+        return false;
+    }
+
+    @Override
+    public Object fileKey() {
+        return null;
+    }
+}
@@ -0,0 +1,187 @@
+package systems.crigges.jmpq3.fs;
+
+import systems.crigges.jmpq3.JMpqArchive;
+import systems.crigges.jmpq3.Listfile;
+import systems.crigges.jmpq3.PathIndex;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Read only file system over the contents of an MPQ archive.
+ * <p>
+ * Files are looked up through the archive hash table, so any file in the
+ * archive can be accessed by name. MPQ archives do not store directories, so
+ * the directory tree is derived from the archive list file. Archives without
+ * a list file only have an empty root directory.
+ */
+@ThreadSafe
+final class MpqFileSystem extends FileSystem {
+
+    private final MpqFileSystemProvider provider;
+    private final Path archivePath;
+    private final JMpqArchive archive;
+    private final MpqPath root;
+
+    /**
+     * Directory tree of the files found in the list file.
+     */
+    private final PathIndex directories;
+
+    private volatile boolean open = true;
+
+    MpqFileSystem(MpqFileSystemProvider provider, Path archivePath, JMpqArchive archive) throws IOException {
+        this.provider = provider;
+        this.archivePath = archivePath;
+        this.archive = archive;
+        this.root = new MpqPath(this, MpqPath.SEPARATOR);
+        this.directories = buildDirectories(archive);
+    }
+
+    private static PathIndex buildDirectories(JMpqArchive archive) throws IOException {
+        if (!archive.hasFile("(listfile)"))
+            return PathIndex.of(List.of());
+
+        final Listfile listfile = archive.getListFile();
+        return PathIndex.of(archive.buildDirectory(listfile).getNames());
+    }
+
+    JMpqArchive getArchive() {
+        return archive;
+    }
+
+    URI getArchiveUri() {
+        return archivePath.toUri();
+    }
+
+    void ensureOpen() {
+        if (!open)
+            throw new ClosedFileSystemException();
+    }
+
+    boolean isDirectory(MpqPath path) {
+        return directories.isDirectory(path.toAbsolutePath().normalize().getArchiveName());
+    }
+
+    boolean isFile(MpqPath path) {
+        final String name = path.toAbsolutePath().normalize().getArchiveName();
+        return !name.isEmpty() && archive.hasFile(name);
+    }
+
+    /**
+     * Get the names of the entries in the specified directory.
+     */
+    Collection<String> getDirectoryEntries(MpqPath path) {
+        return directories.list(path.toAbsolutePath().normalize().getArchiveName());
+    }
+
+    MpqFileAttributes readAttributes(MpqPath path) throws IOException {
+        ensureOpen();
+        if (isDirectory(path))
+            return new MpqFileAttributes(0, true);
+        if (isFile(path))
+            return new MpqFileAttributes(archive.getBlock(path.toAbsolutePath().normalize().getArchiveName()).normalSize(), false);
+
+        throw new NoSuchFileException(path.toString());
+    }
+
+    @Override
+    public MpqFileSystemProvider provider() {
+        return provider;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!open)
+            return;
+
+        open = false;
+        provider.removeFileSystem(archivePath, this);
+        archive.close();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public String getSeparator() {
+        return MpqPath.SEPARATOR;
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories() {
+        return List.of(root);
+    }
+
+    @Override
+    public Iterable<FileStore> getFileStores() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews() {
+        return Set.of("basic");
+    }
+
+    @Override
+    public MpqPath getPath(String first, String... more) {
+        if (more.length == 0)
+            return new MpqPath(this, first);
+        return new MpqPath(this, first + MpqPath.SEPARATOR + String.join(MpqPath.SEPARATOR, more));
+    }
+
+    @Override
+    public PathMatcher getPathMatcher(String syntaxAndPattern) {
+        final int split = syntaxAndPattern.indexOf(':');
+        if (split <= 0)
+            throw new IllegalArgumentException("Missing syntax <" + syntaxAndPattern + ">.");
+
+        final String syntax = syntaxAndPattern.substring(0, split);
+        final String pattern = syntaxAndPattern.substring(split + 1);
+        final Pattern regex;
+        if (syntax.equalsIgnoreCase("glob")) {
+            regex = PathIndex.compileGlob(pattern);
+        } else if (syntax.equalsIgnoreCase("regex")) {
+            regex = Pattern.compile(pattern);
+        } else {
+            throw new UnsupportedOperationException("Unsupported syntax <" + syntax + ">.");
+        }
+        return path -> regex.matcher(path.toString()).matches();
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService() {
+        throw new UnsupportedOperationException("MPQ archives do not support user principals.");
+    }
+
+    @Override
+    public WatchService newWatchService() {
+        throw new UnsupportedOperationException("MPQ archives do not support watch services.");
+    }
+
+    @Override
+    public String toString() {
+        return archivePath.toString();
+    }
+}
@@ -0,0 +1,452 @@
+package systems.crigges.jmpq3.fs;
+
+import systems.crigges.jmpq3.JMpqArchive;
+import systems.crigges.jmpq3.MPQOpenOption;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * File system provider for the "mpq" URI scheme. Exposes the contents of an
+ * MPQ archive as a read only {@link java.nio.file.FileSystem}.
+ * <p>
+ * URIs take the form {@code mpq:<archive file URI>!/<path>}, for example
+ * {@code mpq:file:///data/common.MPQ!/Interface/Icons/INV_Misc_QuestionMark.blp}.
+ * File systems can also be created directly for an archive file using
+ * {@link java.nio.file.FileSystems#newFileSystem(Path)}.
+ * <p>
+ * File data is decoded one sector at a time as it is read, see
+ * {@link JMpqArchive#newByteChannel(String)} and {@link JMpqArchive#openStream(String)}.
+ * The environment map may contain {@link #OPEN_OPTIONS} to pass
+ * {@link MPQOpenOption}s to the archive.
+ */
+public class MpqFileSystemProvider extends FileSystemProvider {
+
+    public static final String SCHEME = "mpq";
+
+    /**
+     * Environment key for a collection of {@link MPQOpenOption}s used to open
+     * the archive.
+     */
+    public static final String OPEN_OPTIONS = "openOptions";
+
+    /**
+     * Extensions of files which are MPQ archives, possibly preceded by other
+     * data. Used to recognize archives by name.
+     */
+    private static final List<String> ARCHIVE_EXTENSIONS = List.of(".mpq", ".w3m", ".w3x", ".w3n", ".scm", ".scx", ".sc2map", ".sc2mod");
+
+    /**
+     * File positions checked for an MPQ header to recognize archives by
+     * content. Warcraft III maps start with a 512 byte map header.
+     */
+    private static final long[] HEADER_POSITIONS = {0, 0x200};
+
+    private final Map<Path, MpqFileSystem> fileSystems = new HashMap<>();
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    private static Path toArchivePath(URI uri) {
+        if (!SCHEME.equalsIgnoreCase(uri.getScheme()))
+            throw new IllegalArgumentException("URI scheme is not '" + SCHEME + "' <" + uri + ">.");
+
+        String spec = uri.getSchemeSpecificPart();
+        final int separator = spec.indexOf("!/");
+        if (separator != -1)
+            spec = spec.substring(0, separator);
+
+        try {
+            return Paths.get(new URI(spec)).toAbsolutePath().normalize();
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid archive URI <" + uri + ">.", e);
+        }
+    }
+
+    private static MPQOpenOption[] getOpenOptions(Map<String, ?> env) {
+        final Object options = env.get(OPEN_OPTIONS);
+        if (options == null)
+            return new MPQOpenOption[0];
+
+        final List<MPQOpenOption> result = new ArrayList<>();
+        for (Object option : (Collection<?>) options) {
+            result.add(option instanceof MPQOpenOption mpqOption ? mpqOption : MPQOpenOption.valueOf(option.toString()));
+        }
+        return result.toArray(new MPQOpenOption[0]);
+    }
+
+    private static MpqPath toMpqPath(Path path) {
+        if (!(path instanceof MpqPath mpqPath))
+            throw new ProviderMismatchException();
+        mpqPath.getFileSystem().ensureOpen();
+        return mpqPath;
+    }
+
+    @Override
+    public MpqFileSystem newFileSystem(URI uri, Map<String, ?> env) throws IOException {
+        final Path archivePath = toArchivePath(uri);
+        synchronized (fileSystems) {
+            if (fileSystems.containsKey(archivePath))
+                throw new FileSystemAlreadyExistsException(archivePath.toString());
+
+            final MpqFileSystem fileSystem = createFileSystem(archivePath, new JMpqArchive(archivePath, getOpenOptions(env)));
+            fileSystems.put(archivePath, fileSystem);
+            return fileSystem;
+        }
+    }
+
+    /**
+     * Creates a file system for an archive file. Called by
+     * {@link java.nio.file.FileSystems#newFileSystem(Path)} for files of any
+     * type, so files are first recognized by extension or by an MPQ header at
+     * the start of the file before they are opened.
+     *
+     * @throws UnsupportedOperationException if the file is not an MPQ archive
+     *                                       or could not be opened as one.
+     */
+    @Override
+    public MpqFileSystem newFileSystem(Path path, Map<String, ?> env) throws IOException {
+        final JMpqArchive archive;
+        try {
+            if (!isArchive(path))
+                throw new UnsupportedOperationException("Not an MPQ archive <" + path + ">.");
+            archive = new JMpqArchive(path, getOpenOptions(env));
+        } catch (IOException | RuntimeException e) {
+            if (e instanceof UnsupportedOperationException unsupported)
+                throw unsupported;
+            // other providers are asked next
+            throw new UnsupportedOperationException("Not an MPQ archive <" + path + ">.", e);
+        }
+        return createFileSystem(path.toAbsolutePath().normalize(), archive);
+    }
+
+    /**
+     * Checks cheaply if a file looks like an MPQ archive, by its extension or
+     * by an archive or user data header at one of {@link #HEADER_POSITIONS}.
+     */
+    private static boolean isArchive(Path path) throws IOException {
+        final Path fileName = path.getFileName();
+        if (fileName != null) {
+            final String name = fileName.toString().toLowerCase(Locale.ROOT);
+            for (String extension : ARCHIVE_EXTENSIONS) {
+                if (name.endsWith(extension))
+                    return true;
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            for (long position : HEADER_POSITIONS) {
+                magic.clear();
+                if (channel.read(magic, position) == magic.capacity()
+                        && (magic.getInt(0) == JMpqArchive.ARCHIVE_HEADER_MAGIC || magic.getInt(0) == JMpqArchive.USER_DATA_HEADER_MAGIC))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Create a file system over an opened archive, closing the archive if
+     * the file system cannot be created.
+     */
+    private MpqFileSystem createFileSystem(Path archivePath, JMpqArchive archive) throws IOException {
+        try {
+            return new MpqFileSystem(this, archivePath, archive);
+        } catch (IOException | RuntimeException e) {
+            try {
+                archive.close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public MpqFileSystem getFileSystem(URI uri) {
+        synchronized (fileSystems) {
+            final MpqFileSystem fileSystem = fileSystems.get(toArchivePath(uri));
+            if (fileSystem == null)
+                throw new FileSystemNotFoundException(uri.toString());
+            return fileSystem;
+        }
+    }
+
+    void removeFileSystem(Path archivePath, MpqFileSystem fileSystem) {
+        synchronized (fileSystems) {
+            fileSystems.remove(archivePath, fileSystem);
+        }
+    }
+
+    @Override
+    public MpqPath getPath(URI uri) {
+        final String spec = uri.getSchemeSpecificPart();
+        final int separator = spec.indexOf("!/");
+        if (separator == -1)
+            throw new IllegalArgumentException("URI does not contain a path inside the archive <" + uri + ">.");
+
+        return getFileSystem(uri).getPath(spec.substring(separator + 1));
+    }
+
+    private static void checkReadOnly(Set<? extends OpenOption> options) {
+        for (OpenOption option : options) {
+            if (option == StandardOpenOption.WRITE || option == StandardOpenOption.APPEND)
+                throw new ReadOnlyFileSystemException();
+        }
+    }
+
+    /**
+     * Get the archive file name of an existing file.
+     */
+    private static String getFileName(MpqPath path) throws IOException {
+        final MpqFileSystem fileSystem = path.getFileSystem();
+        if (!fileSystem.isFile(path)) {
+            if (fileSystem.isDirectory(path))
+                throw new FileSystemException(path.toString(), null, "Is a directory");
+            throw new NoSuchFileException(path.toString());
+        }
+        return path.toAbsolutePath().normalize().getArchiveName();
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException {
+        final MpqPath mpqPath = toMpqPath(path);
+        checkReadOnly(options);
+        return mpqPath.getFileSystem().getArchive().newByteChannel(getFileName(mpqPath));
+    }
+
+    @Override
+    public InputStream newInputStream(Path path, OpenOption... options) throws IOException {
+        final MpqPath mpqPath = toMpqPath(path);
+        checkReadOnly(Set.of(options));
+        return mpqPath.getFileSystem().getArchive().openStream(getFileName(mpqPath));
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter) throws IOException {
+        final MpqPath mpqPath = toMpqPath(dir);
+        final Collection<String> entries = mpqPath.getFileSystem().getDirectoryEntries(mpqPath);
+        if (entries == null) {
+            if (mpqPath.getFileSystem().isFile(mpqPath))
+                throw new NotDirectoryException(dir.toString());
+            throw new NoSuchFileException(dir.toString());
+        }
+
+        final List<Path> paths = new ArrayList<>(entries.size());
+        for (String entry : entries) {
+            paths.add(mpqPath.resolve(new MpqPath(mpqPath.getFileSystem(), entry)));
+        }
+
+        return new DirectoryStream<>() {
+            private boolean iterated;
+            private boolean closed;
+
+            @Override
+            public Iterator<Path> iterator() {
+                if (closed || iterated)
+                    throw new IllegalStateException("Directory stream already iterated or closed.");
+                iterated = true;
+
+                final Iterator<Path> source = paths.iterator();
+                return new Iterator<>() {
+                    private Path next;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (next == null && !closed && source.hasNext()) {
+                            final Path candidate = source.next();
+                            try {
+                                if (filter.accept(candidate))
+                                    next = candidate;
+                            } catch (IOException e) {
+                                throw new DirectoryIteratorException(e);
+                            }
+                        }
+                        return next != null;
+                    }
+
+                    @Override
+                    public Path next() {
+                        if (!hasNext())
+                            throw new NoSuchElementException();
+                        final Path result = next;
+                        next = null;
+                        return result;
+                    }
+                };
+            }
+
+            @Override
+            public void close() {
+                closed = true;
+            }
+        };
+    }
+
+    @Override
+    public void createDirectory(Path dir, FileAttribute<?>... attrs) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void delete(Path path) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void move(Path source, Path target, CopyOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public boolean isSameFile(Path path, Path path2) {
+        if (!(path instanceof MpqPath a) || !(path2 instanceof MpqPath b))
+            return false;
+        return a.toAbsolutePath().normalize().equals(b.toAbsolutePath().normalize());
+    }
+
+    @Override
+    public boolean isHidden(Path path) {
+        return false;
+    }
+
+    @Override
+    public FileStore getFileStore(Path path) {
+        throw new UnsupportedOperationException("MPQ archives do not support file stores.");
+    }
+
+    @Override
+    public void checkAccess(Path path, AccessMode... modes) throws IOException {
+        final MpqPath mpqPath = toMpqPath(path);
+        final MpqFileSystem fileSystem = mpqPath.getFileSystem();
+        if (!fileSystem.isDirectory(mpqPath) && !fileSystem.isFile(mpqPath))
+            throw new NoSuchFileException(path.toString());
+
+        for (AccessMode mode : modes) {
+            if (mode != AccessMode.READ)
+                throw new AccessDeniedException(path.toString());
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options) {
+        final MpqPath mpqPath = toMpqPath(path);
+        if (type != BasicFileAttributeView.class)
+            return null;
+
+        return (V) new BasicFileAttributeView() {
+            @Override
+            public String name() {
+                return "basic";
+            }
+
+            @Override
+            public BasicFileAttributes readAttributes() throws IOException {
+                return mpqPath.getFileSystem().readAttributes(mpqPath);
+            }
+
+            @Override
+            public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) {
+                throw new ReadOnlyFileSystemException();
+            }
+        };
+    }
+
+    @Override
+    public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options) throws IOException {
+        final MpqPath mpqPath = toMpqPath(path);
+        if (!type.isAssignableFrom(MpqFileAttributes.class))
+            throw new UnsupportedOperationException("Unsupported attributes type <" + type.getName() + ">.");
+        return type.cast(mpqPath.getFileSystem().readAttributes(mpqPath));
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options) throws IOException {
+        final MpqPath mpqPath = toMpqPath(path);
+
+        String names = attributes;
+        final int viewSeparator = attributes.indexOf(':');
+        if (viewSeparator != -1) {
+            if (!attributes.substring(0, viewSeparator).equals("basic"))
+                throw new UnsupportedOperationException("Unsupported attribute view <" + attributes + ">.");
+            names = attributes.substring(viewSeparator + 1);
+        }
+
+        final MpqFileAttributes fileAttributes = mpqPath.getFileSystem().readAttributes(mpqPath);
+        final Map<String, Object> all = new LinkedHashMap<>();
+        all.put("lastModifiedTime", fileAttributes.lastModifiedTime());
+        all.put("lastAccessTime", fileAttributes.lastAccessTime());
+        all.put("creationTime", fileAttributes.creationTime());
+        all.put("size", fileAttributes.size());
+        all.put("isRegularFile", fileAttributes.isRegularFile());
+        all.put("isDirectory", fileAttributes.isDirectory());
+        all.put("isSymbolicLink", fileAttributes.isSymbolicLink());
+        all.put("isOther", fileAttributes.isOther());
+        all.put("fileKey", fileAttributes.fileKey());
+
+        if (names.equals("*"))
+            return all;
+
+        final Map<String, Object> result = new LinkedHashMap<>();
+        for (String name : names.split(",")) {
+            if (!all.containsKey(name))
+                throw new IllegalArgumentException("Unknown attribute <" + name + ">.");
+            result.put(name, all.get(name));
+        }
+        return result;
+    }
+
+    @Override
+    public void setAttribute(Path path, String attribute, Object value, LinkOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+}
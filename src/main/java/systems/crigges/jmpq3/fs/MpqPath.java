@@ -0,0 +1,252 @@
+package systems.crigges.jmpq3.fs;
+
+import javax.annotation.concurrent.Immutable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Path to a file or directory inside an MPQ archive.
+ * <p>
+ * Paths use '/' as separator. Backslashes, as used by MPQ file names, are
+ * accepted as separators when creating paths. Like MPQ file names, paths
+ * are compared ignoring case.
+ */
+@Immutable
+final class MpqPath implements Path {
+
+    static final String SEPARATOR = "/";
+
+    private final MpqFileSystem fileSystem;
+    private final String path;
+    private final String[] names;
+
+    MpqPath(MpqFileSystem fileSystem, String path) {
+        this.fileSystem = fileSystem;
+
+        final String[] split = path.replace('\\', '/').split(SEPARATOR);
+        this.names = Arrays.stream(split).filter(name -> !name.isEmpty()).toArray(String[]::new);
+        final String joined = String.join(SEPARATOR, names);
+        this.path = path.startsWith(SEPARATOR) || path.startsWith("\\") ? SEPARATOR + joined : joined;
+    }
+
+    private MpqPath(MpqFileSystem fileSystem, boolean absolute, String[] names) {
+        this.fileSystem = fileSystem;
+        this.names = names;
+        final String joined = String.join(SEPARATOR, names);
+        this.path = absolute ? SEPARATOR + joined : joined;
+    }
+
+    /**
+     * Get the MPQ file name this path refers to, as used by the archive hash
+     * table.
+     */
+    String getArchiveName() {
+        return String.join("\\", names);
+    }
+
+    private static MpqPath checkPath(Path path) {
+        if (!(path instanceof MpqPath))
+            throw new ProviderMismatchException();
+        return (MpqPath) path;
+    }
+
+    private String compareKey() {
+        return path.toUpperCase(Locale.ROOT);
+    }
+
+    private static boolean nameEquals(String a, String b) {
+        return a.toUpperCase(Locale.ROOT).equals(b.toUpperCase(Locale.ROOT));
+    }
+
+    @Override
+    public MpqFileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    @Override
+    public boolean isAbsolute() {
+        return path.startsWith(SEPARATOR);
+    }
+
+    @Override
+    public MpqPath getRoot() {
+        return isAbsolute() ? new MpqPath(fileSystem, true, new String[0]) : null;
+    }
+
+    @Override
+    public MpqPath getFileName() {
+        if (names.length == 0)
+            return null;
+        if (names.length == 1 && !isAbsolute())
+            return this;
+        return new MpqPath(fileSystem, false, new String[]{names[names.length - 1]});
+    }
+
+    @Override
+    public MpqPath getParent() {
+        if (names.length == 0)
+            return null;
+        if (names.length == 1)
+            return getRoot();
+        return new MpqPath(fileSystem, isAbsolute(), Arrays.copyOf(names, names.length - 1));
+    }
+
+    @Override
+    public int getNameCount() {
+        return names.length;
+    }
+
+    @Override
+    public MpqPath getName(int index) {
+        if (index < 0 || index >= names.length)
+            throw new IllegalArgumentException("Invalid name index <" + index + ">.");
+        return new MpqPath(fileSystem, false, new String[]{names[index]});
+    }
+
+    @Override
+    public MpqPath subpath(int beginIndex, int endIndex) {
+        if (beginIndex < 0 || endIndex > names.length || beginIndex >= endIndex)
+            throw new IllegalArgumentException("Invalid subpath <" + beginIndex + ", " + endIndex + ">.");
+        return new MpqPath(fileSystem, false, Arrays.copyOfRange(names, beginIndex, endIndex));
+    }
+
+    @Override
+    public boolean startsWith(Path other) {
+        if (!(other instanceof MpqPath that) || that.fileSystem != fileSystem)
+            return false;
+        if (that.isAbsolute() != isAbsolute() || that.names.length > names.length)
+            return false;
+
+        for (int i = 0; i < that.names.length; i++) {
+            if (!nameEquals(names[i], that.names[i]))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endsWith(Path other) {
+        if (!(other instanceof MpqPath that) || that.fileSystem != fileSystem)
+            return false;
+        if (that.isAbsolute())
+            return equals(that);
+        if (that.names.length > names.length)
+            return false;
+
+        final int offset = names.length - that.names.length;
+        for (int i = 0; i < that.names.length; i++) {
+            if (!nameEquals(names[offset + i], that.names[i]))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public MpqPath normalize() {
+        final List<String> normalized = new ArrayList<>(names.length);
+        for (String name : names) {
+            if (name.equals("."))
+                continue;
+
+            if (name.equals("..")) {
+                final int last = normalized.size() - 1;
+                if (last >= 0 && !normalized.get(last).equals("..")) {
+                    normalized.remove(last);
+                    continue;
+                } else if (isAbsolute()) {
+                    // cannot go above the root
+                    continue;
+                }
+            }
+            normalized.add(name);
+        }
+        return new MpqPath(fileSystem, isAbsolute(), normalized.toArray(new String[0]));
+    }
+
+    @Override
+    public MpqPath resolve(Path other) {
+        final MpqPath that = checkPath(other);
+        if (that.isAbsolute())
+            return that;
+        if (that.path.isEmpty())
+            return this;
+
+        final String[] resolved = Arrays.copyOf(names, names.length + that.names.length);
+        System.arraycopy(that.names, 0, resolved, names.length, that.names.length);
+        return new MpqPath(fileSystem, isAbsolute(), resolved);
+    }
+
+    @Override
+    public MpqPath relativize(Path other) {
+        final MpqPath that = checkPath(other);
+        if (that.isAbsolute() != isAbsolute())
+            throw new IllegalArgumentException("Paths must both be absolute or both be relative.");
+
+        int common = 0;
+        while (common < names.length && common < that.names.length && nameEquals(names[common], that.names[common]))
+            common++;
+
+        final List<String> relative = new ArrayList<>();
+        for (int i = common; i < names.length; i++)
+            relative.add("..");
+        relative.addAll(Arrays.asList(that.names).subList(common, that.names.length));
+        return new MpqPath(fileSystem, false, relative.toArray(new String[0]));
+    }
+
+    @Override
+    public URI toUri() {
+        try {
+            return new URI(MpqFileSystemProvider.SCHEME, fileSystem.getArchiveUri() + "!" + toAbsolutePath().path, null);
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public MpqPath toAbsolutePath() {
+        return isAbsolute() ? this : new MpqPath(fileSystem, true, names);
+    }
+
+    @Override
+    public MpqPath toRealPath(LinkOption... options) throws IOException {
+        final MpqPath real = toAbsolutePath().normalize();
+        fileSystem.provider().checkAccess(real);
+        return real;
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers) {
+        throw new UnsupportedOperationException("MPQ archives do not support watch services.");
+    }
+
+    @Override
+    public int compareTo(Path other) {
+        return compareKey().compareTo(checkPath(other).compareKey());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof MpqPath that && that.fileSystem == fileSystem && that.compareKey().equals(compareKey());
+    }
+
+    @Override
+    public int hashCode() {
+        return compareKey().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
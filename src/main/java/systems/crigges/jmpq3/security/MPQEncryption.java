@@ -1,5 +1,7 @@
 package systems.crigges.jmpq3.security;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
@@ -26,6 +28,11 @@ public class MPQEncryption {
      */
     private static final int BLOCK_SIZE = 4;
 
+    /**
+     * View of byte arrays as little endian blocks.
+     */
+    private static final VarHandle BLOCK_VIEW = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
     /**
      * Internal seed used by algorithm.
      */
@@ -169,4 +176,35 @@ public class MPQEncryption {
         final ByteBuffer dst = buff.duplicate();
         processFinal(buff, dst);
     }
+
+    /**
+     * Process a range of an array, writing results back to the same range.
+     * Any remaining data that cannot fit inside a block at the end is left
+     * unchanged. The behaviour of this method is defined only for when no
+     * previous calls to process methods have been made since the key was
+     * changed.
+     *
+     * @param data
+     *            source and destination array.
+     * @param offset
+     *            offset of the range.
+     * @param length
+     *            length of the range.
+     */
+    public void processSingle(final byte[] data, final int offset, final int length) {
+        for (int pos = offset, end = offset + (length & -BLOCK_SIZE); pos < end; pos += BLOCK_SIZE) {
+            // prepare block
+            seed += CryptographicLUT.ENCRYPTION.lookup((byte) key);
+            final int block = key + seed;
+
+            // process input
+            final int in = (int) BLOCK_VIEW.get(data, pos);
+            final int out = in ^ block;
+            BLOCK_VIEW.set(data, pos, out);
+
+            // advance algorithm
+            seed += (decrypt ? out : in) + (seed << 5) + 3;
+            key = (~key << 21) + 0x11111111 | key >>> 11;
+        }
+    }
 }
@@ -12,6 +12,26 @@ import java.nio.charset.StandardCharsets;
  * MPQ.
  */
 public class MPQHashGenerator {
+    /**
+     * Initial value of seed 1.
+     */
+    private static final int INITIAL_SEED1 = 0x7FED7FED;
+
+    /**
+     * Initial value of seed 2.
+     */
+    private static final int INITIAL_SEED2 = 0xEEEEEEEE;
+
+    /**
+     * Translates ASCII characters to upper case. Other values are unchanged.
+     */
+    private static final byte[] ASCII_TO_UPPER = new byte[256];
+    static {
+        for (int i = 0; i < ASCII_TO_UPPER.length; i++) {
+            ASCII_TO_UPPER[i] = (byte) (i >= 'a' && i <= 'z' ? i - ('a' - 'A') : i);
+        }
+    }
+
     /**
      * Seed 1 used as hash result.
      */
@@ -45,19 +65,33 @@ public class MPQHashGenerator {
      * generator will behave as if it was freshly created.
      */
     public void reset() {
-        seed1 = 0x7FED7FED;
-        seed2 = 0xEEEEEEEE;
+        seed1 = INITIAL_SEED1;
+        seed2 = INITIAL_SEED2;
     }
 
     /**
      * Convenience method to process data from the given string, assuming UTF_8
-     * encoding.
+     * encoding. ASCII characters are converted to upper case, like the MPQ
+     * implementation does on the encoded name, so the hash does not depend on
+     * the default locale.
      *
      * @param src
      *            string to be hashed.
      */
     public void process(String src) {
-        process(ByteBuffer.wrap(src.toUpperCase().getBytes(StandardCharsets.UTF_8)));
+        if (!isAscii(src)) {
+            for (byte b : src.getBytes(StandardCharsets.UTF_8))
+                process(ASCII_TO_UPPER[Byte.toUnsignedInt(b)]);
+            return;
+        }
+
+        for (int i = 0; i < src.length(); i++)
+            process(ASCII_TO_UPPER[src.charAt(i)]);
+    }
+
+    private void process(byte value) {
+        seed1 = lut.lookup(value) ^ (seed1 + seed2);
+        seed2 = Byte.toUnsignedInt(value) + seed1 + seed2 + (seed2 << 5) + 3;
     }
 
     /**
@@ -123,6 +157,75 @@ public class MPQHashGenerator {
         return new MPQHashGenerator(CryptographicLUT.HASH_ENCRYPTION_KEY);
     }
 
+    private static boolean isAscii(CharSequence src) {
+        for (int i = 0; i < src.length(); i++) {
+            if (src.charAt(i) >= 0x80)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Hashes a file name for hash table lookups. The table offset hash and
+     * both key hashes are computed in a single pass over the name, converting
+     * ASCII characters to upper case on the fly, without intermediate strings
+     * or buffers. Names with other characters are encoded as UTF-8 first.
+     * <p>
+     * Produces the same hashes as processing the name with the table offset,
+     * key 1 and key 2 generators.
+     *
+     * @param name
+     *            file name.
+     * @return name hashes.
+     */
+    public static MPQNameHash hashFileName(CharSequence name) {
+        if (!isAscii(name))
+            return hashFileName(name.toString().getBytes(StandardCharsets.UTF_8));
+
+        int offset1 = INITIAL_SEED1, offset2 = INITIAL_SEED2;
+        int key11 = INITIAL_SEED1, key12 = INITIAL_SEED2;
+        int key21 = INITIAL_SEED1, key22 = INITIAL_SEED2;
+        for (int i = 0; i < name.length(); i++) {
+            final byte value = ASCII_TO_UPPER[name.charAt(i)];
+            final int ch = Byte.toUnsignedInt(value);
+
+            offset1 = CryptographicLUT.HASH_TABLE_OFFSET.lookup(value) ^ (offset1 + offset2);
+            offset2 = ch + offset1 + offset2 + (offset2 << 5) + 3;
+            key11 = CryptographicLUT.HASH_TABLE_KEY1.lookup(value) ^ (key11 + key12);
+            key12 = ch + key11 + key12 + (key12 << 5) + 3;
+            key21 = CryptographicLUT.HASH_TABLE_KEY2.lookup(value) ^ (key21 + key22);
+            key22 = ch + key21 + key22 + (key22 << 5) + 3;
+        }
+        return new MPQNameHash(offset1, key11, key21);
+    }
+
+    /**
+     * Hashes a file name for hash table lookups. Like
+     * {@link #hashFileName(CharSequence)} but for an already encoded name.
+     * Only ASCII characters are converted to upper case.
+     *
+     * @param name
+     *            encoded file name.
+     * @return name hashes.
+     */
+    public static MPQNameHash hashFileName(byte[] name) {
+        int offset1 = INITIAL_SEED1, offset2 = INITIAL_SEED2;
+        int key11 = INITIAL_SEED1, key12 = INITIAL_SEED2;
+        int key21 = INITIAL_SEED1, key22 = INITIAL_SEED2;
+        for (byte b : name) {
+            final byte value = ASCII_TO_UPPER[Byte.toUnsignedInt(b)];
+            final int ch = Byte.toUnsignedInt(value);
+
+            offset1 = CryptographicLUT.HASH_TABLE_OFFSET.lookup(value) ^ (offset1 + offset2);
+            offset2 = ch + offset1 + offset2 + (offset2 << 5) + 3;
+            key11 = CryptographicLUT.HASH_TABLE_KEY1.lookup(value) ^ (key11 + key12);
+            key12 = ch + key11 + key12 + (key12 << 5) + 3;
+            key21 = CryptographicLUT.HASH_TABLE_KEY2.lookup(value) ^ (key21 + key22);
+            key22 = ch + key21 + key22 + (key22 << 5) + 3;
+        }
+        return new MPQNameHash(offset1, key11, key21);
+    }
+
     public static int generateFileKey(String s) {
         final MPQHashGenerator hasher = MPQHashGenerator.getFileKeyGenerator();
         hasher.process(s);
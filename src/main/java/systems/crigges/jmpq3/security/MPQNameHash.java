@@ -0,0 +1,20 @@
+package systems.crigges.jmpq3.security;
+
+/**
+ * The hashes of a file name used to look the file up in a hash table.
+ *
+ * @param offset Hash used as the hash table bucket array index.
+ * @param key1   Hash used as part 1 of the file key.
+ * @param key2   Hash used as part 2 of the file key.
+ */
+public record MPQNameHash(int offset, int key1, int key2) {
+
+    /**
+     * Get the 64 bit file key made from both key hashes.
+     *
+     * @return 64 bit file key.
+     */
+    public long key() {
+        return ((long) key2 << 32) | Integer.toUnsignedLong(key1);
+    }
+}
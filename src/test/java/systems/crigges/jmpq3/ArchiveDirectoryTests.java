@@ -0,0 +1,45 @@
+package systems.crigges.jmpq3;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests of building archive directories from names which are not taken from a
+ * list file, which is not visible outside the package.
+ */
+public class ArchiveDirectoryTests {
+
+    @Test
+    public void testNamesWithTheSameKeyAreKeptOnce() {
+        String[] mapped = {"B.txt", "a\\x.txt", "zz"};
+        int capacity = 16;
+        long[] keys = new long[capacity];
+        short[] locales = new short[capacity];
+        int[] blockTableIndices = new int[capacity];
+        Arrays.fill(blockTableIndices, -1);
+        List<Block> blocks = new ArrayList<>();
+        for (String name : mapped) {
+            FileIdentifier file = FileIdentifier.of(name);
+            int slot = file.offset() & (capacity - 1);
+            while (blockTableIndices[slot] != -1) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            keys[slot] = file.key();
+            blockTableIndices[slot] = blocks.size();
+            blocks.add(new Block(blocks.size() * 16L, 16, 16, Block.EXISTS));
+        }
+
+        ArchiveDirectory directory = ArchiveDirectory.build(HashTable.of(keys, locales, blockTableIndices), BlockTable.of(blocks),
+                List.of("zz", "A\\X.TXT", "B.txt", "a\\x.txt", "missing"), HashTable.DEFAULT_LOCALE);
+
+        Assert.assertEquals(directory.getNames(), List.of("A\\X.TXT", "B.txt", "zz"));
+        Assert.assertEquals(directory.indexOf("a\\X.txt"), 0);
+        Assert.assertEquals(directory.indexOf("b.TXT"), 1);
+        Assert.assertEquals(directory.getBlockIndex(directory.indexOf("zz")), 2);
+        Assert.assertEquals(directory.indexOf("missing"), -1);
+    }
+}
@@ -0,0 +1,69 @@
+package systems.crigges.jmpq3;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests of the key filter of hash tables, which is not visible outside the
+ * package.
+ */
+public class BloomFilterTests {
+
+    @Test
+    public void testPresentKeysAreContained() {
+        Random random = new Random(7);
+        for (int count : new int[]{0, 1, 5, 100, 4096, 70000}) {
+            long[] keys = new long[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = random.nextLong();
+            }
+            BloomFilter filter = new BloomFilter(keys, count);
+            for (long key : keys) {
+                Assert.assertTrue(filter.mightContain(key), "count " + count);
+            }
+        }
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        Random random = new Random(11);
+        int count = 10000;
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = FileIdentifier.of("Units\\Unit" + i + ".mdx").key();
+        }
+        BloomFilter filter = new BloomFilter(keys, count);
+
+        int falsePositives = 0;
+        int probes = 200000;
+        for (int i = 0; i < probes; i++) {
+            if (filter.mightContain(random.nextLong()))
+                falsePositives++;
+        }
+        // about 1 in 200 at 16 bits per key, allow twice that
+        Assert.assertTrue(falsePositives < probes / 100, "false positives " + falsePositives);
+    }
+
+    @Test
+    public void testKeyFilterIgnoresLocale() {
+        // the filter holds keys only, so files mapped under any locale pass it
+        FileIdentifier file = FileIdentifier.of("war3map.j", (short) 0x409);
+        long[] keys = new long[16];
+        short[] locales = new short[16];
+        int[] blockTableIndices = new int[16];
+        Arrays.fill(blockTableIndices, -1);
+        int bucket = file.offset() & 15;
+        keys[bucket] = file.key();
+        locales[bucket] = file.locale();
+        blockTableIndices[bucket] = 0;
+
+        HashTable filtered = HashTable.of(keys, locales, blockTableIndices).withKeyFilter();
+        Assert.assertTrue(filtered.hasFile(file));
+        Assert.assertTrue(filtered.hasFile(file.withLocale(HashTable.DEFAULT_LOCALE)));
+        Assert.assertEquals(filtered.findBlockIndex(file.withLocale((short) 0x407)), 0);
+        Assert.assertFalse(filtered.hasFile(FileIdentifier.of("war3map.j.missing")));
+    }
+}
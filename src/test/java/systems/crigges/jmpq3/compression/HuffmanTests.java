@@ -0,0 +1,65 @@
+package systems.crigges.jmpq3.compression;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HexFormat;
+
+/**
+ * Tests of the Huffman decoder, which is not visible outside the package.
+ */
+public class HuffmanTests {
+
+    // probability table 0, adapting the tree after every symbol
+    private static final String ADAPTIVE_TEXT = "call InitBlizzard()\ncall InitGlobals()\n"
+        + "call InitCustomTriggers()\ncall RunInitializationTriggers()\n";
+    private static final String ADAPTIVE_STREAM = "0018f33062b30fb292ba5b4af3744a08c6f59e7f7237d98632a7740a2fa1dd77"
+        + "ccfa48de9b2d96e2e678496fe47b9e5d7ae85447eeb56f5b51ed3c3f1b46652140086f48a72fb59d7dec982998e3608cdc0a"
+        + "e58d18bcb303";
+
+    // probability table 2, to which the '~' is added, with an end code of 10 bits
+    private static final String FIXED_TEXT = "call SetPlayerName(Player(0), \"~Frotty~\")\n";
+    private static final String FIXED_STREAM = "02e0422831911cde7a3692cbe7037278ebd91ebcd17e3786920ab48f582f2906daa75c";
+
+    @Test
+    public void testAdaptiveStream() {
+        Assert.assertEquals(decode(new Huffman(), ADAPTIVE_STREAM, ADAPTIVE_TEXT.length()), ascii(ADAPTIVE_TEXT));
+    }
+
+    @Test
+    public void testNewValues() {
+        Assert.assertEquals(decode(new Huffman(), FIXED_STREAM, FIXED_TEXT.length()), ascii(FIXED_TEXT));
+    }
+
+    @Test
+    public void testEndOfInput() {
+        // less than 7 bits are left for the last symbols, which are decoded a bit at a time
+        Huffman huffman = new Huffman();
+        Assert.assertEquals(decode(huffman, "009f", 5), new byte[5]);
+        Assert.assertEquals(decode(huffman, "00ff4f", 12), new byte[12]);
+    }
+
+    @Test
+    public void testReuse() {
+        // links into the tree of the previous stream must not be used
+        Huffman huffman = new Huffman();
+        for (int i = 0; i < 2; i++) {
+            Assert.assertEquals(decode(huffman, ADAPTIVE_STREAM, ADAPTIVE_TEXT.length()), ascii(ADAPTIVE_TEXT));
+            Assert.assertEquals(decode(huffman, "009f", 5), new byte[5]);
+            Assert.assertEquals(decode(huffman, FIXED_STREAM, FIXED_TEXT.length()), ascii(FIXED_TEXT));
+        }
+    }
+
+    private static byte[] decode(Huffman huffman, String stream, int size) {
+        ByteBuffer out = ByteBuffer.allocate(size);
+        huffman.decompress(ByteBuffer.wrap(HexFormat.of().parseHex(stream)), out);
+        Assert.assertEquals(out.position(), size);
+        return out.array();
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -1,22 +1,57 @@
 package systems.crigges.jmpq3test;
 
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.Assert;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.Test;
 import systems.crigges.jmpq3.*;
+import systems.crigges.jmpq3.compression.CompressionUtil;
+import systems.crigges.jmpq3.compression.Exploder;
+import systems.crigges.jmpq3.compression.ExtractionContext;
+import systems.crigges.jmpq3.compression.SectorCodec;
+import systems.crigges.jmpq3.compression.SectorCodecs;
+import systems.crigges.jmpq3.fs.MpqFileSystemProvider;
 import systems.crigges.jmpq3.security.MPQEncryption;
+import systems.crigges.jmpq3.security.MPQHashGenerator;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
 
+import static systems.crigges.jmpq3.Block.COMPRESSED;
 import static systems.crigges.jmpq3.Block.ENCRYPTED;
+import static systems.crigges.jmpq3.Block.EXISTS;
+import static systems.crigges.jmpq3.Block.SINGLE_UNIT;
 
 /**
  * Created by Frotty on 06.03.2017.
@@ -69,6 +104,19 @@ public class MpqTests {
         Assert.assertTrue(Arrays.equals(bytes, workBuffer.array()));
     }
 
+    @Test
+    public void cryptoArrayTest() {
+        byte[] bytes = "Hello World, in place!".getBytes();
+
+        final ByteBuffer expected = ByteBuffer.wrap(bytes.clone());
+        new MPQEncryption(-1011927184, true).processSingle(expected);
+
+        final byte[] actual = new byte[bytes.length + 5];
+        System.arraycopy(bytes, 0, actual, 3, bytes.length);
+        new MPQEncryption(-1011927184, true).processSingle(actual, 3, bytes.length);
+        Assert.assertEquals(Arrays.copyOfRange(actual, 3, 3 + bytes.length), expected.array());
+    }
+
 
     @Test
     public void testException() {
@@ -129,4 +177,768 @@ public class MpqTests {
             }
         }
     }
+
+    @Test
+    public void testMemoryMappedExtraction() throws IOException {
+        File[] mpqs = getMpqs();
+        for (File mpq : mpqs) {
+            log.info("test memory mapped extract: " + mpq.getName());
+            try (JMpqArchive mpqEditor = new JMpqArchive(mpq, MPQOpenOption.FORCE_V0);
+                 JMpqArchive mappedEditor = new JMpqArchive(mpq, MPQOpenOption.FORCE_V0, MPQOpenOption.MEMORY_MAPPED)) {
+                Assert.assertTrue(mappedEditor.isMemoryMapped());
+                if (mpqEditor.hasFile("war3map.j")) {
+                    byte[] expected = mpqEditor.getMpqFile("war3map.j").extractToBytes();
+                    Assert.assertEquals(mappedEditor.getMpqFile("war3map.j").extractToBytes(), expected);
+
+                    // mapped source into a direct buffer, inflated without heap copies
+                    ByteBuffer direct = ByteBuffer.allocateDirect(expected.length);
+                    mappedEditor.getMpqFile("war3map.j").extractTo(direct);
+                    byte[] actual = new byte[expected.length];
+                    direct.get(0, actual);
+                    Assert.assertEquals(actual, expected);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testParallelExtraction() throws IOException {
+        File[] mpqs = getMpqs();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (File mpq : mpqs) {
+                log.info("test parallel extract: " + mpq.getName());
+                try (JMpqArchive mpqEditor = new JMpqArchive(mpq, MPQOpenOption.FORCE_V0)) {
+                    if (!mpqEditor.hasFile("(listfile)")) {
+                        continue;
+                    }
+                    for (String name : mpqEditor.getListFile().getFiles()) {
+                        if (!mpqEditor.hasFile(name)) {
+                            continue;
+                        }
+                        MpqFile file = mpqEditor.getMpqFile(name);
+                        Assert.assertEquals(file.extractToBytes(pool), file.extractToBytes(), name);
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testExtractToBuffer() throws IOException {
+        File[] mpqs = getMpqs();
+        for (File mpq : mpqs) {
+            log.info("test extract to buffer: " + mpq.getName());
+            try (JMpqArchive mpqEditor = new JMpqArchive(mpq, MPQOpenOption.FORCE_V0)) {
+                if (mpqEditor.hasFile("war3map.j")) {
+                    MpqFile file = mpqEditor.getMpqFile("war3map.j");
+                    byte[] expected = file.extractToBytes();
+
+                    ByteBuffer direct = ByteBuffer.allocateDirect(expected.length + 8);
+                    direct.position(8);
+                    Assert.assertEquals(file.extractTo(direct), expected.length);
+                    Assert.assertFalse(direct.hasRemaining());
+                    byte[] actual = new byte[expected.length];
+                    direct.get(8, actual);
+                    Assert.assertEquals(actual, expected);
+
+                    byte[] array = new byte[expected.length + 3];
+                    Assert.assertEquals(file.extractTo(array, 3), expected.length);
+                    Assert.assertEquals(Arrays.copyOfRange(array, 3, array.length), expected);
+
+                    Assert.expectThrows(BufferOverflowException.class, () -> file.extractTo(new byte[expected.length], 1));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSectorCodec() throws IOException {
+        AtomicInteger calls = new AtomicInteger();
+        AtomicInteger bufferCalls = new AtomicInteger();
+        SectorCodec codec = new SectorCodec() {
+            @Override
+            public int compressionMask() {
+                return 0x02;
+            }
+
+            @Override
+            public void decompress(byte[] in, int off, int len, byte[] out, int outOff, int outLen, ExtractionContext context) throws IOException {
+                calls.incrementAndGet();
+                CompressionUtil.inflate(in, off, len, out, outOff, outLen, context);
+            }
+
+            @Override
+            public void decompress(ByteBuffer in, ByteBuffer out, ExtractionContext context) throws IOException {
+                bufferCalls.incrementAndGet();
+                CompressionUtil.inflate(in, out, context);
+            }
+        };
+        File[] mpqs = getMpqs();
+        for (File mpq : mpqs) {
+            log.info("test sector codec: " + mpq.getName());
+            try (JMpqArchive mpqEditor = new JMpqArchive(mpq, MPQOpenOption.FORCE_V0)) {
+                if (mpqEditor.hasFile("war3map.j")) {
+                    MpqFile file = mpqEditor.getMpqFile("war3map.j");
+                    byte[] expected = file.extractToBytes();
+                    SectorCodecs.register(codec);
+                    try {
+                        Assert.assertEquals(file.extractToBytes(), expected);
+
+                        // sectors decoded into a direct buffer use the buffer path of the codec
+                        ByteBuffer direct = ByteBuffer.allocateDirect(expected.length);
+                        Assert.assertEquals(file.extractTo(direct), expected.length);
+                        byte[] actual = new byte[expected.length];
+                        direct.get(0, actual);
+                        Assert.assertEquals(actual, expected);
+                    } finally {
+                        SectorCodecs.unregister(0x02);
+                    }
+                }
+            }
+        }
+        Assert.assertTrue(calls.get() > 0);
+        Assert.assertTrue(bufferCalls.get() > 0);
+        Assert.expectThrows(IllegalArgumentException.class, () -> SectorCodecs.register(new SectorCodec() {
+            @Override
+            public int compressionMask() {
+                return 0x100;
+            }
+
+            @Override
+            public void decompress(byte[] in, int off, int len, byte[] out, int outOff, int outLen, ExtractionContext context) {
+            }
+        }));
+    }
+
+    @Test
+    public void testSparseDecompression() throws IOException {
+        // 3 literals, 10 zeros, 2 literals, 130 zeros
+        byte[] sparse = {0, 0, 0, (byte) 145, (byte) 0x82, 1, 2, 3, 0x07, (byte) 0x81, 4, 5, 0x7F};
+        byte[] expected = new byte[145];
+        expected[0] = 1;
+        expected[1] = 2;
+        expected[2] = 3;
+        expected[13] = 4;
+        expected[14] = 5;
+
+        byte[] out = new byte[expected.length];
+        CompressionUtil.decompressVersion2(withType((byte) 0x20, sparse), 0, sparse.length + 1, out, 0, out.length);
+        Assert.assertEquals(out, expected);
+
+        Deflater deflater = new Deflater();
+        deflater.setInput(sparse);
+        deflater.finish();
+        byte[] deflated = new byte[256];
+        int deflatedLength = deflater.deflate(deflated);
+        deflater.end();
+        out = new byte[expected.length];
+        CompressionUtil.decompressVersion2(withType((byte) 0x22, Arrays.copyOf(deflated, deflatedLength)), 0, deflatedLength + 1, out, 0, out.length);
+        Assert.assertEquals(out, expected);
+
+        ByteArrayOutputStream bzip2 = new ByteArrayOutputStream();
+        try (BZip2CompressorOutputStream stream = new BZip2CompressorOutputStream(bzip2)) {
+            stream.write(sparse);
+        }
+        out = new byte[expected.length];
+        CompressionUtil.decompressVersion2(withType((byte) 0x30, bzip2.toByteArray()), 0, bzip2.size() + 1, out, 0, out.length);
+        Assert.assertEquals(out, expected);
+
+        byte[] truncated = withType((byte) 0x20, Arrays.copyOf(sparse, 7));
+        Assert.expectThrows(JMpqException.class, () -> CompressionUtil.decompressVersion2(truncated, 0, truncated.length, new byte[145], 0, 145));
+    }
+
+    @Test
+    public void testImplode() throws IOException, NoSuchAlgorithmException {
+        // binary literals and 1024 byte dictionary, the example of blast.c by Mark Adler
+        byte[] binary = {0x00, 0x04, (byte) 0x82, 0x24, 0x25, (byte) 0x8f, (byte) 0x80, 0x7f};
+        byte[] out = new byte[13];
+        Exploder.pkexplode(binary, 0, binary.length, out, 0, out.length);
+        Assert.assertEquals(new String(out, StandardCharsets.US_ASCII), "AIAIAIAIAIAIA");
+
+        // text literals, with copies of a whole line, of a run of spaces and overlapping copies
+        String text = "function main takes nothing returns nothing\n"
+            + "    call SetCameraBounds(-3328.0, -3584.0, 3328.0, 3072.0)\n"
+            + "    call SetCameraBounds(-3328.0, -3584.0, 3328.0, 3072.0)\n"
+            + "    call SetDayNightModels(\"Environment\\\\DNC\\\\DNCLordaeron\")\n"
+            + "    call InitBlizzard()\n"
+            + "    call InitGlobals()\n"
+            + "    call RunInitializationTriggers(                              )\n"
+            + "endfunction\n";
+        byte[] ascii = HexFormat.of().parseHex("010434d96028966e78b2636da33808b6ea0d5da16c86ea355b913523fd89fd0786639a9e"
+            + "bd019143b63507555f5dba4a28c5c6c641c7c3c5f75b60a263cd981bb0713170b627080259850e389e45a528c83add3657"
+            + "078e6b40b0b445b0f28602c2202ce4897ae2eb1add597e1b8593cc2c302c05d5b4400a52677d08e3fba09a3a73eb954db6"
+            + "7196c0745a5bafa533eab3b4654d5d91759992b00cabb954e9591ce2807f");
+        out = new byte[text.length()];
+        Exploder.pkexplode(ascii, 0, ascii.length, out, 0, out.length);
+        Assert.assertEquals(new String(out, StandardCharsets.US_ASCII), text);
+        Assert.expectThrows(IllegalArgumentException.class, () -> Exploder.pkexplode(ascii, 0, ascii.length - 8, new byte[text.length()], 0, text.length()));
+
+        // the first token copies from the dictionary, which is still empty
+        byte[] emptyDictionary = binary.clone();
+        emptyDictionary[2] = (byte) 0x83;
+        IllegalArgumentException e = Assert.expectThrows(IllegalArgumentException.class,
+            () -> Exploder.pkexplode(emptyDictionary, 0, emptyDictionary.length, new byte[13], 0, 13));
+        Assert.assertTrue(e.getMessage().startsWith("PK_ERR_BAD_DATA"), e.getMessage());
+
+        // imploded files of the test maps, with dictionaries of 1024, 2048 and 4096 bytes
+        String[][] pinned = {
+            {"mpqs/implodedTest.w3x", "loadingscreenbr.blp", "b7fb322c661b2506c88ad4bfd2f60dd0"},
+            {"mpqs/normalMap.w3x", "war3map.shd", "fcd6bcb56c1689fcef28b57c22475bad"},
+            {"mpqs/pkwareTest.w3x", "War3map.doo", "d5d7899dffcff7f1252fd0335c8db59e"},
+            {"mpqs/pkwareTest.w3x", "War3map.mmp", "4e435da7e91982a8e46c5e63168877b4"},
+            {"mpqs/pkwareTest.w3x", "War3map.shd", "dfc9e8c7bd3d50f404d6f0b6ada20b0c"},
+            {"mpqs/pkwareTest.w3x", "War3map.w3b", "6c12a703889651e1479fb31c17a983b7"},
+            {"mpqs/pkwareTest.w3x", "War3map.w3d", "a6839b6f197b4469fb1c824cffa034ac"},
+            {"mpqs/pkwareTest.w3x", "War3map.w3e", "c88650b4fc9ed5c5bd1bdb399cc46643"},
+        };
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        for (String[] file : pinned) {
+            try (JMpqArchive mpqEditor = new JMpqArchive(getFile(file[0]), MPQOpenOption.READ_ONLY, MPQOpenOption.FORCE_V0)) {
+                byte[] data = mpqEditor.getMpqFile(file[1]).extractToBytes();
+                Assert.assertEquals(HexFormat.of().formatHex(md5.digest(data)), file[2], file[1]);
+            }
+        }
+    }
+
+    private static byte[] withType(byte compressionType, byte[] data) {
+        byte[] sector = new byte[data.length + 1];
+        sector[0] = compressionType;
+        System.arraycopy(data, 0, sector, 1, data.length);
+        return sector;
+    }
+
+    @Test
+    public void testExtractionContext() throws IOException {
+        File[] mpqs = getMpqs();
+        for (File mpq : mpqs) {
+            log.info("test extraction context: " + mpq.getName());
+            try (JMpqArchive mpqEditor = new JMpqArchive(mpq, MPQOpenOption.FORCE_V0);
+                 ExtractionContext context = new ExtractionContext()) {
+                if (!mpqEditor.hasFile("(listfile)")) {
+                    continue;
+                }
+                for (String name : mpqEditor.getListFile().getFiles()) {
+                    if (!mpqEditor.hasFile(name)) {
+                        continue;
+                    }
+                    MpqFile file = mpqEditor.getMpqFile(name);
+                    byte[] expected = file.extractToBytes();
+                    ByteBuffer actual = ByteBuffer.allocate(expected.length);
+                    file.extractTo(actual, context);
+                    Assert.assertEquals(actual.array(), expected, name);
+                }
+            }
+        }
+        Assert.expectThrows(IllegalStateException.class, () -> ExtractionContext.current().close());
+    }
+
+    @Test
+    public void testOpenStream() throws IOException {
+        File[] mpqs = getMpqs();
+        for (File mpq : mpqs) {
+            log.info("test open stream: " + mpq.getName());
+            try (JMpqArchive mpqEditor = new JMpqArchive(mpq, MPQOpenOption.FORCE_V0)) {
+                if (mpqEditor.hasFile("war3map.j")) {
+                    byte[] expected = mpqEditor.getMpqFile("war3map.j").extractToBytes();
+                    try (InputStream stream = mpqEditor.openStream("war3map.j")) {
+                        Assert.assertEquals(stream.readAllBytes(), expected);
+                    }
+                    try (InputStream stream = mpqEditor.getMpqFile("war3map.j").openStream()) {
+                        Assert.assertEquals(stream.skip(100), 100);
+                        Assert.assertEquals(stream.readAllBytes(), Arrays.copyOfRange(expected, 100, expected.length));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testExtractRange() throws IOException {
+        File[] mpqs = getMpqs();
+        for (File mpq : mpqs) {
+            log.info("test extract range: " + mpq.getName());
+            try (JMpqArchive mpqEditor = new JMpqArchive(mpq, MPQOpenOption.FORCE_V0)) {
+                if (mpqEditor.hasFile("war3map.j")) {
+                    MpqFile mpqFile = mpqEditor.getMpqFile("war3map.j");
+                    byte[] expected = mpqFile.extractToBytes();
+
+                    ByteBuffer header = ByteBuffer.allocate(64);
+                    Assert.assertEquals(mpqFile.extractRange(0, 64, header), 64);
+                    Assert.assertEquals(header.array(), Arrays.copyOfRange(expected, 0, 64));
+
+                    int offset = expected.length / 2;
+                    ByteBuffer tail = ByteBuffer.allocate(expected.length);
+                    Assert.assertEquals(mpqFile.extractRange(offset, expected.length, tail), expected.length - offset);
+                    Assert.assertEquals(Arrays.copyOf(tail.array(), tail.position()), Arrays.copyOfRange(expected, offset, expected.length));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testNewByteChannel() throws IOException {
+        File[] mpqs = getMpqs();
+        for (File mpq : mpqs) {
+            log.info("test byte channel: " + mpq.getName());
+            try (JMpqArchive mpqEditor = new JMpqArchive(mpq, MPQOpenOption.FORCE_V0)) {
+                if (mpqEditor.hasFile("war3map.j")) {
+                    byte[] expected = mpqEditor.getMpqFile("war3map.j").extractToBytes();
+                    try (SeekableByteChannel channel = mpqEditor.newByteChannel("war3map.j")) {
+                        Assert.assertEquals(channel.size(), expected.length);
+
+                        ByteBuffer buffer = ByteBuffer.allocate(100);
+                        channel.position(expected.length - 50);
+                        Assert.assertEquals(channel.read(buffer), 50);
+                        Assert.assertEquals(channel.read(buffer), -1);
+
+                        buffer.clear();
+                        channel.position(10);
+                        Assert.assertEquals(channel.read(buffer), 100);
+                        Assert.assertEquals(channel.position(), 110);
+                        Assert.assertEquals(buffer.array(), Arrays.copyOfRange(expected, 10, 110));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a version 0 archive with 512 byte sectors holding the kinds of
+     * blocks the test maps lack: raw and encrypted raw files split into
+     * sectors, and compressed single unit files.
+     *
+     * @return content of each file by name.
+     */
+    private static Map<String, byte[]> writeSyntheticArchive(Path target) throws IOException {
+        byte[] raw = new byte[1502];
+        new Random(3).nextBytes(raw);
+        byte[] text = "function main takes nothing returns nothing\r\n".repeat(80).getBytes(StandardCharsets.US_ASCII);
+
+        String[] names = {"raw.bin", "encrypted.bin", "single.j", "Scripts\\encryptedSingle.j"};
+        byte[][] contents = {raw, raw, text, text};
+        int[] flags = {EXISTS, EXISTS | ENCRYPTED, EXISTS | SINGLE_UNIT | COMPRESSED, EXISTS | SINGLE_UNIT | COMPRESSED | ENCRYPTED};
+
+        ByteBuffer data = ByteBuffer.allocate(0x4000).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer hashTable = ByteBuffer.allocate(16 * 16).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer blockTable = ByteBuffer.allocate(names.length * 16).order(ByteOrder.LITTLE_ENDIAN);
+        Arrays.fill(hashTable.array(), (byte) -1);
+        data.position(32);
+        for (int i = 0; i < names.length; i++) {
+            byte[] stored = contents[i];
+            if ((flags[i] & COMPRESSED) != 0) {
+                Deflater deflater = new Deflater();
+                deflater.setInput(contents[i]);
+                deflater.finish();
+                byte[] deflated = new byte[contents[i].length];
+                stored = withType((byte) 0x02, Arrays.copyOf(deflated, deflater.deflate(deflated)));
+                deflater.end();
+            }
+            if ((flags[i] & ENCRYPTED) != 0) {
+                stored = stored.clone();
+                int key = MPQHashGenerator.generateFileKey(names[i].substring(names[i].lastIndexOf('\\') + 1));
+                int sectorSize = (flags[i] & SINGLE_UNIT) != 0 ? stored.length : 512;
+                for (int sector = 0; sector * sectorSize < stored.length; sector++) {
+                    int offset = sector * sectorSize;
+                    new MPQEncryption(key + sector, false).processSingle(stored, offset, Math.min(sectorSize, stored.length - offset));
+                }
+            }
+            blockTable.putInt(data.position()).putInt(stored.length).putInt(contents[i].length).putInt(flags[i]);
+            data.put(stored);
+
+            FileIdentifier file = FileIdentifier.of(names[i]);
+            int bucket = file.offset() & 15;
+            while (hashTable.getInt(bucket * 16 + 12) != -1) {
+                bucket = bucket + 1 & 15;
+            }
+            hashTable.putLong(bucket * 16, file.key()).putInt(bucket * 16 + 8, 0).putInt(bucket * 16 + 12, i);
+        }
+        new MPQEncryption(MPQHashGenerator.generateFileKey("(hash table)"), false).processSingle(hashTable.array(), 0, hashTable.capacity());
+        new MPQEncryption(MPQHashGenerator.generateFileKey("(block table)"), false).processSingle(blockTable.array(), 0, blockTable.capacity());
+
+        int hashTablePosition = data.position();
+        data.put(hashTable.array()).put(blockTable.array());
+        data.putInt(0, JMpqArchive.ARCHIVE_HEADER_MAGIC).putInt(4, 32).putInt(8, data.position()).putShort(12, (short) 0)
+            .putShort(14, (short) 0).putInt(16, hashTablePosition).putInt(20, hashTablePosition + hashTable.capacity())
+            .putInt(24, 16).putInt(28, names.length);
+        Files.write(target, Arrays.copyOf(data.array(), data.position()));
+
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            files.put(names[i], contents[i]);
+        }
+        return files;
+    }
+
+    @Test
+    public void testSyntheticBlocks() throws IOException {
+        Path target = Files.createTempFile("synthetic", ".mpq");
+        try {
+            Map<String, byte[]> files = writeSyntheticArchive(target);
+            try (JMpqArchive mpqEditor = new JMpqArchive(target)) {
+                for (Map.Entry<String, byte[]> entry : files.entrySet()) {
+                    String name = entry.getKey();
+                    byte[] expected = entry.getValue();
+                    log.info("test synthetic block: " + name + " " + mpqEditor.getBlock(name).printFlags());
+                    MpqFile mpqFile = mpqEditor.getMpqFile(name);
+                    Assert.assertEquals(mpqFile.extractToBytes(), expected, name);
+
+                    // ranges within a sector, across sector borders, at and past the end
+                    int[][] ranges = {{0, 10}, {3, 509}, {500, 30}, {510, 600}, {1, expected.length}, {expected.length - 3, 10},
+                        {expected.length, 5}};
+                    for (int[] range : ranges) {
+                        int end = Math.min(expected.length, range[0] + range[1]);
+                        ByteBuffer dst = ByteBuffer.allocate(range[1]);
+                        Assert.assertEquals(mpqFile.extractRange(range[0], range[1], dst), end - range[0], name);
+                        Assert.assertEquals(Arrays.copyOf(dst.array(), dst.position()), Arrays.copyOfRange(expected, range[0], end),
+                            name + " " + Arrays.toString(range));
+                    }
+
+                    try (InputStream stream = mpqEditor.openStream(name)) {
+                        Assert.assertEquals(stream.skip(700), 700);
+                        Assert.assertEquals(stream.readAllBytes(), Arrays.copyOfRange(expected, 700, expected.length), name);
+                    }
+
+                    try (SeekableByteChannel channel = mpqEditor.newByteChannel(name)) {
+                        ByteBuffer buffer = ByteBuffer.allocate(600);
+                        channel.position(expected.length - 100);
+                        Assert.assertEquals(channel.read(buffer), 100);
+                        buffer.clear();
+                        channel.position(5);
+                        Assert.assertEquals(channel.read(buffer), 600);
+                        Assert.assertEquals(buffer.array(), Arrays.copyOfRange(expected, 5, 605), name);
+                    }
+                }
+            }
+        } finally {
+            Files.deleteIfExists(target);
+        }
+    }
+
+    @Test
+    public void testByteChannelSectorCache() throws IOException {
+        Path target = Files.createTempFile("synthetic", ".mpq");
+        try {
+            byte[] expected = writeSyntheticArchive(target).get("raw.bin");
+            try (JMpqArchive mpqEditor = new JMpqArchive(target);
+                 SeekableByteChannel channel = mpqEditor.newByteChannel("raw.bin")) {
+                ByteBuffer buffer = ByteBuffer.allocate(100);
+                Assert.assertEquals(channel.read(buffer), 100);
+
+                // overwrite the first sector in the archive, seeking back must be served from the cache
+                try (FileChannel archive = FileChannel.open(target, StandardOpenOption.WRITE)) {
+                    archive.write(ByteBuffer.allocate(512), mpqEditor.getBlock("raw.bin").getFilePos());
+                }
+                Assert.assertEquals(Arrays.copyOf(mpqEditor.getMpqFile("raw.bin").extractToBytes(), 512), new byte[512]);
+
+                buffer.clear();
+                channel.position(0);
+                Assert.assertEquals(channel.read(buffer), 100);
+                Assert.assertEquals(buffer.array(), Arrays.copyOf(expected, 100));
+            }
+        } finally {
+            Files.deleteIfExists(target);
+        }
+    }
+
+    @Test
+    public void testFileIdentifierEquality() {
+        FileIdentifier file = FileIdentifier.of("A\\b.txt");
+        Assert.assertEquals(file, FileIdentifier.of("a\\B.TXT"));
+        Assert.assertEquals(file.hashCode(), FileIdentifier.of("a\\B.TXT").hashCode());
+        Assert.assertEquals(file, new FileIdentifier(file.key(), file.offset(), file.locale()));
+        Assert.assertNotEquals(file, file.withLocale((short) 0x407));
+    }
+
+    @Test
+    public void testNameHashIgnoresDefaultLocale() {
+        Locale locale = Locale.getDefault();
+        try {
+            Locale.setDefault(Locale.forLanguageTag("tr-TR"));
+            Assert.assertEquals(MPQHashGenerator.hashFileName("file\u00E4.txt"), MPQHashGenerator.hashFileName("FILE\u00E4.TXT"));
+            Assert.assertEquals(MPQHashGenerator.hashFileName("file\u00E4.txt"),
+                    MPQHashGenerator.hashFileName("file\u00E4.txt".getBytes(StandardCharsets.UTF_8)));
+            Assert.assertEquals(MPQHashGenerator.generateFileKey("file\u00E4.txt"), MPQHashGenerator.generateFileKey("FILE\u00E4.TXT"));
+            // only ASCII characters are folded
+            Assert.assertNotEquals(MPQHashGenerator.hashFileName("\u00E4"), MPQHashGenerator.hashFileName("\u00C4"));
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    @Test
+    public void testFileIdentifierLookup() throws IOException {
+        FileIdentifier script = FileIdentifier.of("war3map.j");
+        FileIdentifier missing = FileIdentifier.of("Missing\\File.txt");
+        File[] mpqs = getMpqs();
+        for (File mpq : mpqs) {
+            log.info("test file identifier lookup: " + mpq.getName());
+            try (JMpqArchive mpqEditor = new JMpqArchive(mpq, MPQOpenOption.FORCE_V0)) {
+                Assert.assertNull(mpqEditor.lookup(missing));
+                Assert.assertEquals(mpqEditor.hasFile(script), mpqEditor.hasFile("war3map.j"));
+                if (mpqEditor.hasFile("war3map.j")) {
+                    Assert.assertEquals(mpqEditor.lookup(script), mpqEditor.getBlock("war3map.j"));
+                    Assert.assertEquals(mpqEditor.getMpqFile(script).extractToBytes(),
+                            mpqEditor.getMpqFile("war3map.j").extractToBytes());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBuildDirectory() throws IOException {
+        File[] mpqs = getMpqs();
+        for (File mpq : mpqs) {
+            log.info("test build directory: " + mpq.getName());
+            try (JMpqArchive mpqEditor = new JMpqArchive(mpq, MPQOpenOption.FORCE_V0)) {
+                if (mpqEditor.hasFile("(listfile)")) {
+                    Listfile listfile = mpqEditor.getListFile();
+                    ArchiveDirectory directory = mpqEditor.buildDirectory(listfile);
+                    Assert.assertEquals(directory.size(), listfile.getFiles().stream().filter(mpqEditor::hasFile).map(FileIdentifier::of).distinct().count());
+                    for (String name : listfile.getFiles()) {
+                        ArchiveDirectory.Entry entry = directory.find(name);
+                        Assert.assertEquals(entry != null, mpqEditor.hasFile(name));
+                        if (entry != null) {
+                            Assert.assertEquals(entry.block(), mpqEditor.getBlock(name));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBloomFilter() throws IOException {
+        File[] mpqs = getMpqs();
+        for (File mpq : mpqs) {
+            log.info("test bloom filter: " + mpq.getName());
+            try (JMpqArchive mpqEditor = new JMpqArchive(mpq, MPQOpenOption.FORCE_V0);
+                 JMpqArchive filteredEditor = new JMpqArchive(mpq, MPQOpenOption.FORCE_V0, MPQOpenOption.BLOOM_FILTER)) {
+                if (mpqEditor.hasFile("(listfile)")) {
+                    for (String name : mpqEditor.getListFile().getFiles()) {
+                        Assert.assertEquals(filteredEditor.hasFile(name), mpqEditor.hasFile(name));
+                        // the filter never rejects a mapped file looked up under another locale
+                        FileIdentifier german = FileIdentifier.of(name, (short) 0x407);
+                        Assert.assertEquals(filteredEditor.lookup(german), mpqEditor.lookup(german));
+                        Assert.assertFalse(filteredEditor.hasFile(name + ".missing"));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testIndexCache() throws IOException {
+        File[] mpqs = getMpqs();
+        for (File mpq : mpqs) {
+            log.info("test index cache: " + mpq.getName());
+            Path sidecar = mpq.toPath().resolveSibling(mpq.getName() + ".jmpqidx");
+            try (JMpqArchive mpqEditor = new JMpqArchive(mpq, MPQOpenOption.FORCE_V0)) {
+                for (int i = 0; i < 2; i++) {
+                    try (JMpqArchive cachedEditor = new JMpqArchive(mpq, MPQOpenOption.FORCE_V0, MPQOpenOption.INDEX_CACHE)) {
+                        Assert.assertTrue(Files.exists(sidecar));
+                        Assert.assertEquals(cachedEditor.getBlockTable().getAllVaildBlocks(), mpqEditor.getBlockTable().getAllVaildBlocks());
+                        if (mpqEditor.hasFile("war3map.j")) {
+                            Assert.assertEquals(cachedEditor.getMpqFile("war3map.j").extractToBytes(),
+                                    mpqEditor.getMpqFile("war3map.j").extractToBytes());
+                        }
+                        if (mpqEditor.hasFile("(listfile)")) {
+                            Assert.assertEquals(Set.copyOf(cachedEditor.getListFile().getFiles()), Set.copyOf(mpqEditor.getListFile().getFiles()));
+                            ArchiveDirectory expected = mpqEditor.buildDirectory(mpqEditor.getListFile());
+                            ArchiveDirectory cached = cachedEditor.getDirectory();
+                            Assert.assertEquals(cached.getNames(), expected.getNames());
+                            for (String name : expected.getNames()) {
+                                Assert.assertEquals(cached.find(name), expected.find(name));
+                            }
+                        }
+                    }
+                }
+            } finally {
+                Files.deleteIfExists(sidecar);
+            }
+        }
+    }
+
+    @Test
+    public void testLazyTables() throws IOException {
+        File[] mpqs = getMpqs();
+        for (File mpq : mpqs) {
+            log.info("test lazy tables: " + mpq.getName());
+            try (JMpqArchive mpqEditor = new JMpqArchive(mpq, MPQOpenOption.FORCE_V0);
+                 JMpqArchive lazyEditor = new JMpqArchive(mpq, MPQOpenOption.FORCE_V0, MPQOpenOption.LAZY_TABLES)) {
+                Assert.assertEquals(lazyEditor.hasFile("war3map.j"), mpqEditor.hasFile("war3map.j"));
+                if (mpqEditor.hasFile("war3map.j")) {
+                    Assert.assertEquals(lazyEditor.getMpqFile("war3map.j").extractToBytes(),
+                            mpqEditor.getMpqFile("war3map.j").extractToBytes());
+                }
+                Assert.assertEquals(lazyEditor.getTotalFileCount(), mpqEditor.getTotalFileCount());
+            }
+        }
+    }
+
+    @Test
+    public void testUserDataHeader() throws IOException {
+        File mpq = getFile("mpqs/normalMap.w3x");
+        byte[] map = Files.readAllBytes(mpq.toPath());
+        int archiveStart = 0;
+        while (ByteBuffer.wrap(map, archiveStart, 4).order(ByteOrder.LITTLE_ENDIAN).getInt() != JMpqArchive.ARCHIVE_HEADER_MAGIC) {
+            archiveStart += 0x200;
+        }
+
+        // user data header redirecting to an archive header which is not sector aligned
+        byte[] data = "user data".getBytes();
+        int headerOffset = 0x310;
+        ByteBuffer file = ByteBuffer.allocate(headerOffset + map.length - archiveStart).order(ByteOrder.LITTLE_ENDIAN);
+        file.putInt(JMpqArchive.USER_DATA_HEADER_MAGIC).putInt(0x200).putInt(headerOffset).putInt(data.length).put(data);
+        file.position(headerOffset);
+        file.put(map, archiveStart, map.length - archiveStart);
+
+        Path target = Files.createTempFile("userData", ".mpq");
+        try {
+            Files.write(target, file.array());
+            try (JMpqArchive original = new JMpqArchive(mpq);
+                 JMpqArchive mpqEditor = new JMpqArchive(target)) {
+                MpqUserData userData = mpqEditor.getUserData();
+                Assert.assertNotNull(userData);
+                Assert.assertEquals(userData.position(), 0);
+                Assert.assertEquals(userData.headerOffset(), headerOffset);
+                Assert.assertEquals(userData.data(), data);
+                Assert.assertNull(original.getUserData());
+                Assert.assertEquals(mpqEditor.getMpqFile("war3map.j").extractToBytes(), original.getMpqFile("war3map.j").extractToBytes());
+            }
+
+            // sizes beyond the archive header are bounded by it
+            file.putInt(4, -1).putInt(12, -1);
+            Files.write(target, file.array());
+            try (JMpqArchive mpqEditor = new JMpqArchive(target)) {
+                Assert.assertEquals(mpqEditor.getUserData().data().length, headerOffset - MpqUserData.HEADER_SIZE);
+            }
+        } finally {
+            Files.deleteIfExists(target);
+        }
+    }
+
+    @Test
+    public void testExtractAll() throws IOException {
+        File[] mpqs = getMpqs();
+        for (File mpq : mpqs) {
+            log.info("test extract all: " + mpq.getName());
+            try (JMpqArchive mpqEditor = new JMpqArchive(mpq, MPQOpenOption.FORCE_V0)) {
+                if (!mpqEditor.hasFile("(listfile)")) {
+                    continue;
+                }
+                Path target = Files.createTempDirectory("extractAll");
+                try {
+                    ArchiveDirectory directory = mpqEditor.buildDirectory(mpqEditor.getListFile());
+                    int count = mpqEditor.extractAll(target, ExtractOptions.defaults().withThreads(3));
+                    Assert.assertEquals(count, directory.size());
+                    for (String name : directory.getNames()) {
+                        Assert.assertEquals(Files.readAllBytes(target.resolve(name.replace('\\', '/'))),
+                                mpqEditor.getMpqFile(name).extractToBytes());
+                    }
+
+                    Path filtered = target.resolve("filtered");
+                    int scripts = mpqEditor.extractAll(filtered, ExtractOptions.defaults().withFilter(name -> name.endsWith(".j")));
+                    try (Stream<Path> walk = Files.walk(filtered)) {
+                        Assert.assertEquals(walk.filter(Files::isRegularFile).count(), scripts);
+                    }
+                } finally {
+                    try (Stream<Path> walk = Files.walk(target)) {
+                        walk.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testArchiveChain() throws IOException {
+        File[] mpqs = getMpqs();
+        File base = Arrays.stream(mpqs).filter(f -> f.getName().startsWith("normalMap")).findFirst().orElseThrow();
+        File patch = Arrays.stream(mpqs).filter(f -> f.getName().startsWith("wavTest")).findFirst().orElseThrow();
+
+        try (JMpqArchiveChain chain = new JMpqArchiveChain(List.of(base.toPath(), patch.toPath()));
+             JMpqArchive baseArchive = new JMpqArchive(base);
+             JMpqArchive patchArchive = new JMpqArchive(patch)) {
+            Assert.assertTrue(baseArchive.hasFile("(listfile)") && patchArchive.hasFile("(listfile)"));
+            Assert.assertEquals(chain.getMpqFile("(listfile)").extractToBytes(), patchArchive.getMpqFile("(listfile)").extractToBytes());
+            Assert.assertSame(chain.findArchive(FileIdentifier.of("(listfile)")), chain.getArchives().get(1));
+
+            for (String name : baseArchive.getListFile().getFiles()) {
+                if (baseArchive.hasFile(name) && !patchArchive.hasFile(name)) {
+                    Assert.assertSame(chain.findArchive(FileIdentifier.of(name)), chain.getArchives().get(0));
+                    Assert.assertEquals(chain.getMpqFile(name).extractToBytes(), baseArchive.getMpqFile(name).extractToBytes());
+                }
+            }
+            Assert.assertFalse(chain.hasFile("Missing\\File.txt"));
+        }
+    }
+
+    @Test
+    public void testPathIndex() {
+        PathIndex index = PathIndex.of(List.of("Interface\\Icons\\INV_Axe_01.blp", "interface\\icons\\inv_sword_02.blp",
+                "Interface\\Icons\\Spell_Fire.blp", "Interface\\Glues\\Logo.blp", "World\\Maps\\Azeroth\\Azeroth_32_48.adt",
+                "World\\Maps\\Azeroth\\Azeroth.wdt", "war3map.j"));
+
+        Assert.assertEquals(index.size(), 7);
+        Assert.assertTrue(index.isDirectory("INTERFACE\\icons"));
+        Assert.assertTrue(index.isFile("World/Maps/Azeroth/azeroth.WDT"));
+        Assert.assertEquals(index.list(""), List.of("Interface", "World", "war3map.j"));
+        Assert.assertEquals(index.findByPrefix("interface\\icons\\inv_"),
+                List.of("Interface\\Icons\\INV_Axe_01.blp", "interface\\icons\\inv_sword_02.blp"));
+        Assert.assertEquals(index.findByPrefix("Interface\\").size(), 4);
+        Assert.assertEquals(index.glob("World/Maps/Azeroth/*.adt"), List.of("World\\Maps\\Azeroth\\Azeroth_32_48.adt"));
+        Assert.assertEquals(index.glob("**/*.BLP").size(), 4);
+        Assert.assertEquals(index.glob("Interface/?????/L*"), List.of("Interface\\Glues\\Logo.blp"));
+        Assert.assertEquals(index.glob("Interface/Icons/{INV_Axe,Spell}_*").size(), 2);
+        Assert.assertTrue(index.glob("Missing/*").isEmpty());
+        Assert.assertEquals(index.glob("World\\Maps\\Azeroth\\*.adt"), List.of("World\\Maps\\Azeroth\\Azeroth_32_48.adt"));
+        Assert.assertThrows(IllegalArgumentException.class, () -> index.glob("Interface/[\\]*"));
+
+        // several recursive names still return each file once
+        PathIndex nested = PathIndex.of(List.of("a\\a\\f.x", "a\\b\\a\\c\\g.x", "x.x"));
+        Assert.assertEquals(nested.glob("**/a/**/*.x"), List.of("a\\a\\f.x", "a\\b\\a\\c\\g.x"));
+        Assert.assertEquals(nested.glob("**/a/**"), List.of("a\\a\\f.x", "a\\b\\a\\c\\g.x"));
+
+        // same case folding as the path matcher of the file system
+        PathIndex sounds = PathIndex.of(List.of("Sound\\\u00C4rger.wav", "Sound\\a*b.wav", "Sound\\ab.wav"));
+        Assert.assertTrue(sounds.isFile("sound/\u00E4rger.WAV"));
+        Assert.assertEquals(sounds.glob("sound/\u00E4*"), List.of("Sound\\\u00C4rger.wav"));
+        Assert.assertEquals(sounds.glob("Sound/a[*]b.wav"), List.of("Sound\\a*b.wav"));
+        Assert.assertTrue(PathIndex.compileGlob("sound/\u00E4*").matcher("Sound\\\u00C4rger.wav").matches());
+    }
+
+    @Test
+    public void testFileSystem() throws IOException {
+        File[] mpqs = getMpqs();
+        for (File mpq : mpqs) {
+            log.info("test file system: " + mpq.getName());
+            try (JMpqArchive mpqEditor = new JMpqArchive(mpq, MPQOpenOption.FORCE_V0);
+                 FileSystem fileSystem = FileSystems.newFileSystem(mpq.toPath(), Map.of("openOptions", List.of(MPQOpenOption.FORCE_V0)))) {
+                Path script = fileSystem.getPath("/war3map.j");
+                Assert.assertEquals(Files.exists(script), mpqEditor.hasFile("war3map.j"));
+                Assert.assertFalse(Files.exists(fileSystem.getPath("/doesNotExist.txt")));
+                if (mpqEditor.hasFile("war3map.j")) {
+                    byte[] expected = mpqEditor.getMpqFile("war3map.j").extractToBytes();
+                    Assert.assertEquals(Files.size(script), expected.length);
+                    Assert.assertEquals(Files.readAllBytes(script), expected);
+                    try (InputStream stream = Files.newInputStream(fileSystem.getPath("WAR3MAP.J"))) {
+                        Assert.assertEquals(stream.readAllBytes(), expected);
+                    }
+                }
+                if (mpqEditor.hasFile("(listfile)")) {
+                    try (Stream<Path> files = Files.walk(fileSystem.getPath("/"))) {
+                        Assert.assertTrue(files.filter(Files::isRegularFile).allMatch(Files::exists));
+                    }
+                }
+            }
+        }
+
+        // other files are left to the other providers
+        MpqFileSystemProvider provider = new MpqFileSystemProvider();
+        Assert.expectThrows(UnsupportedOperationException.class, () -> provider.newFileSystem(getFile("Example.txt").toPath(), Map.of()));
+        Assert.expectThrows(UnsupportedOperationException.class, () -> provider.newFileSystem(Path.of("doesNotExist.zip"), Map.of()));
+    }
 }